@@ -0,0 +1,249 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An invocation processor which memoizes invocation replies.  Replies are keyed by the declaring class, method
+ * identifier and argument values of the invocation, so argument types should have meaningful {@code equals} and
+ * {@code hashCode} implementations.  Only methods which opt in are cached, either by being annotated with
+ * {@link Cacheable} on the declaring class or by being configured via {@link #setTimeToLive(Class, MethodIdentifier, long, TimeUnit)}.
+ * Exceptional results and streaming replies, whose publisher may only be subscribed once, are never cached.
+ * <p>
+ * The cache is bounded.  When full, the least recently used entry is a candidate for eviction, but it is only
+ * replaced if the new entry has been requested more frequently (as estimated by a compact frequency sketch), which keeps
+ * one-off invocations from flushing popular entries.
+ * <p>
+ * A reply computed while any invalidation takes place is returned but not cached, since it may predate the change which
+ * prompted the invalidation.
+ */
+public final class CachingInvocationProcessor implements InvocationProcessor {
+
+    private static final long NOT_CACHED = -1L;
+    private static final long NO_EXPIRY = 0L;
+
+    private final int maximumSize;
+    // held by each declaring class, so that it does not keep redeployed class loaders reachable
+    private final ClassValue<ConcurrentMap<MethodIdentifier, Long>> methodPolicies = new ClassValue<ConcurrentMap<MethodIdentifier, Long>>() {
+        protected ConcurrentMap<MethodIdentifier, Long> computeValue(final Class<?> type) {
+            return new ConcurrentHashMap<MethodIdentifier, Long>();
+        }
+    };
+    private final LinkedHashMap<InvocationKey, CachedReply> entries;
+    private final FrequencySketch sketch;
+    // guarded by entries; advanced by every invalidation
+    private long generation;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param maximumSize the maximum number of cached replies
+     */
+    public CachingInvocationProcessor(final int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1");
+        }
+        this.maximumSize = maximumSize;
+        entries = new LinkedHashMap<InvocationKey, CachedReply>(16, 0.75f, true);
+        sketch = new FrequencySketch(maximumSize);
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply processInvocation(final InvocationProcessorContext context, final Invocation invocation) throws InvocationException, IllegalArgumentException {
+        final long timeToLive = getPolicy(invocation.getDeclaringClass(), invocation.getMethodIdentifier());
+        if (timeToLive == NOT_CACHED) {
+            return context.invokeNext(invocation);
+        }
+        final InvocationKey key = new InvocationKey(invocation);
+        final long now = System.nanoTime();
+        final long generation;
+        synchronized (entries) {
+            generation = this.generation;
+            sketch.increment(key.hashCode());
+            final CachedReply entry = entries.get(key);
+            if (entry != null) {
+                if (! entry.isExpired(now)) {
+                    return entry.reply.withProperties(entry.reply.getProperties());
+                }
+                entries.remove(key);
+            }
+        }
+        final InvocationReply reply = context.invokeNext(invocation);
+        if (reply.isStreaming()) {
+            return reply;
+        }
+        final CachedReply entry = new CachedReply(reply, timeToLive, System.nanoTime());
+        synchronized (entries) {
+            if (this.generation != generation) {
+                return reply;
+            }
+            if (entries.size() >= maximumSize && ! entries.containsKey(key)) {
+                final Iterator<Map.Entry<InvocationKey, CachedReply>> iterator = entries.entrySet().iterator();
+                final Map.Entry<InvocationKey, CachedReply> victim = iterator.next();
+                if (! victim.getValue().isExpired(now) && sketch.frequency(key.hashCode()) <= sketch.frequency(victim.getKey().hashCode())) {
+                    return reply;
+                }
+                iterator.remove();
+            }
+            entries.put(key, entry);
+        }
+        return reply;
+    }
+
+    /**
+     * Enable caching for a method, overriding any {@link Cacheable} annotation.
+     *
+     * @param declaringClass the declaring class of the method
+     * @param methodIdentifier the method identifier
+     * @param timeToLive the time for which cached results remain valid, or {@code 0} for no expiry
+     * @param unit the time unit
+     */
+    public void setTimeToLive(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final long timeToLive, final TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("timeToLive is negative");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null");
+        }
+        setPolicy(declaringClass, methodIdentifier, Long.valueOf(timeToLive == 0 ? NO_EXPIRY : Math.max(1L, unit.toNanos(timeToLive))));
+    }
+
+    /**
+     * Disable caching for a method, overriding any {@link Cacheable} annotation.  Existing results for the method are
+     * invalidated.
+     *
+     * @param declaringClass the declaring class of the method
+     * @param methodIdentifier the method identifier
+     */
+    public void disableCaching(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        setPolicy(declaringClass, methodIdentifier, Long.valueOf(NOT_CACHED));
+        invalidate(declaringClass, methodIdentifier);
+    }
+
+    /**
+     * Invalidate the cached result of a single invocation, if any.
+     *
+     * @param declaringClass the declaring class of the method
+     * @param methodIdentifier the method identifier
+     * @param args the invocation arguments
+     */
+    public void invalidate(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Object... args) {
+        final InvocationKey key = new InvocationKey(declaringClass, methodIdentifier, args);
+        synchronized (entries) {
+            generation++;
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Invalidate all cached results of a method.
+     *
+     * @param declaringClass the declaring class of the method
+     * @param methodIdentifier the method identifier
+     */
+    public void invalidate(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        synchronized (entries) {
+            generation++;
+            final Iterator<InvocationKey> iterator = entries.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isSameMethod(declaringClass, methodIdentifier)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidate all cached results.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+        }
+    }
+
+    private void setPolicy(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Long policy) {
+        if (declaringClass == null) {
+            throw new IllegalArgumentException("declaringClass is null");
+        }
+        if (methodIdentifier == null) {
+            throw new IllegalArgumentException("methodIdentifier is null");
+        }
+        methodPolicies.get(declaringClass).put(methodIdentifier, policy);
+    }
+
+    private long getPolicy(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        final ConcurrentMap<MethodIdentifier, Long> methodPolicies = this.methodPolicies.get(declaringClass);
+        Long policy = methodPolicies.get(methodIdentifier);
+        if (policy == null) {
+            policy = Long.valueOf(annotatedPolicy(declaringClass, methodIdentifier));
+            final Long appearing = methodPolicies.putIfAbsent(methodIdentifier, policy);
+            if (appearing != null) {
+                policy = appearing;
+            }
+        }
+        return policy.longValue();
+    }
+
+    private static long annotatedPolicy(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        final Method method;
+        try {
+            method = methodIdentifier.getPublicMethod(declaringClass);
+        } catch (NoSuchMethodException e) {
+            return NOT_CACHED;
+        } catch (ClassNotFoundException e) {
+            return NOT_CACHED;
+        }
+        final Cacheable cacheable = method.getAnnotation(Cacheable.class);
+        if (cacheable == null || Flow.Publisher.class.isAssignableFrom(method.getReturnType())) {
+            return NOT_CACHED;
+        }
+        final long timeToLive = cacheable.timeToLive();
+        return timeToLive <= 0 ? NO_EXPIRY : Math.max(1L, cacheable.unit().toNanos(timeToLive));
+    }
+
+    private static final class CachedReply {
+        private final InvocationReply reply;
+        private final boolean expires;
+        private final long expiry;
+
+        CachedReply(final InvocationReply reply, final long timeToLive, final long now) {
+            this.reply = reply;
+            expires = timeToLive != NO_EXPIRY;
+            expiry = now + timeToLive;
+        }
+
+        boolean isExpired(final long now) {
+            return expires && now - expiry >= 0;
+        }
+    }
+}
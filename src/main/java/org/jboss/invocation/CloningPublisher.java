@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import org.jboss.marshalling.cloner.ClassLoaderClassCloner;
+import org.jboss.marshalling.cloner.ClonerConfiguration;
+import org.jboss.marshalling.cloner.ObjectCloner;
+import org.jboss.marshalling.cloner.ObjectCloners;
+
+/**
+ * A publisher which clones each element of another publisher to a class loader as it is delivered, so that a
+ * streaming reply or argument may be passed by value without first materializing it.  {@code ByteBuffer} elements
+ * carry no class references and are passed on as they are.  Demand and cancellation are passed through unchanged.
+ */
+final class CloningPublisher implements Flow.Publisher<Object> {
+
+    private final Flow.Publisher<?> delegate;
+    private final ClassLoader classLoader;
+
+    CloningPublisher(final Flow.Publisher<?> delegate, final ClassLoader classLoader) {
+        this.delegate = delegate;
+        this.classLoader = classLoader;
+    }
+
+    public void subscribe(final Flow.Subscriber<? super Object> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber is null");
+        }
+        final ClonerConfiguration configuration = new ClonerConfiguration();
+        configuration.setClassCloner(new ClassLoaderClassCloner(classLoader));
+        delegate.subscribe(new CloningSubscriber(subscriber, ObjectCloners.getSerializingObjectClonerFactory().createCloner(configuration)));
+    }
+
+    private static final class CloningSubscriber implements Flow.Subscriber<Object> {
+        private final Flow.Subscriber<? super Object> subscriber;
+        private final ObjectCloner cloner;
+        private Flow.Subscription subscription;
+        private boolean failed;
+
+        CloningSubscriber(final Flow.Subscriber<? super Object> subscriber, final ObjectCloner cloner) {
+            this.subscriber = subscriber;
+            this.cloner = cloner;
+        }
+
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscriber.onSubscribe(subscription);
+        }
+
+        public void onNext(final Object item) {
+            if (failed) {
+                return;
+            }
+            if (item instanceof ByteBuffer) {
+                subscriber.onNext(item);
+                return;
+            }
+            final Object clone;
+            try {
+                clone = cloner.clone(item);
+            } catch (Exception e) {
+                failed = true;
+                subscription.cancel();
+                subscriber.onError(new InvocationException("Cannot pass streamed result by value", e));
+                return;
+            } finally {
+                // elements are independent; do not let the cloner's object table grow with the stream
+                cloner.reset();
+            }
+            subscriber.onNext(clone);
+        }
+
+        public void onError(final Throwable throwable) {
+            if (! failed) {
+                subscriber.onError(throwable);
+            }
+        }
+
+        public void onComplete() {
+            if (! failed) {
+                subscriber.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue delay controller after the CoDel algorithm, for dispatchers which queue invocations.  The controller watches
+ * the time each invocation spends in the queue.  If even the shortest delay within an interval exceeds the target,
+ * the queue has not drained during that interval, and the controller considers itself overloaded until an interval
+ * passes in which some invocation waited less than the target.
+ * <p>
+ * An invocation which waited longer than the interval is shed; while overloaded, one which waited longer than the
+ * target is shed.  A queue may also favour new arrivals over old ones while overloaded, since their callers are the
+ * most likely to still be waiting.
+ * <p>
+ * A queue uses a controller by recording the {@link System#nanoTime()} at which each item is queued, calling
+ * {@link #dequeued(long)} with that time whenever it takes an item, and shedding the item if the call returns
+ * {@code true}; and by calling {@link #drained()} whenever it finds itself empty.  A controller is thread safe, and one
+ * controller should serve one queue, since its measurements describe the queue as a whole.
+ *
+ * @see SchedulingInvocationDispatcher
+ */
+public final class CoDelController {
+
+    private final long target;
+    private final long interval;
+
+    // guarded by this
+    private long intervalEnd;
+    private long minimumDelay = Long.MAX_VALUE;
+    private volatile boolean overloaded;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param target the target queue delay
+     * @param interval the measurement interval, which is also the longest time any item may be queued
+     * @param unit the unit of {@code target} and {@code interval}
+     */
+    public CoDelController(final long target, final long interval, final TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null");
+        }
+        this.target = unit.toNanos(target);
+        this.interval = unit.toNanos(interval);
+        if (this.target <= 0) {
+            throw new IllegalArgumentException("target must be positive");
+        }
+        if (this.interval < this.target) {
+            throw new IllegalArgumentException("interval is less than target");
+        }
+        intervalEnd = System.nanoTime() + this.interval;
+    }
+
+    /**
+     * Determine whether the queue has been persistently delayed.  The state changes only when an item is taken at the
+     * end of an interval, so a queue which is not being taken from keeps its last state.
+     *
+     * @return {@code true} if the controller is overloaded
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * Record that an item has been taken from the queue.  This must be called once for every item taken, including
+     * items which are then discarded for other reasons, so that the controller sees every queue delay.
+     *
+     * @param enqueued the {@link System#nanoTime()} at which the item was queued
+     * @return {@code true} if the item should be shed rather than run
+     */
+    public synchronized boolean dequeued(final long enqueued) {
+        final long now = System.nanoTime();
+        final long delay = now - enqueued;
+        if (delay < minimumDelay) {
+            minimumDelay = delay;
+        }
+        if (now - intervalEnd >= 0L) {
+            overloaded = minimumDelay > target;
+            minimumDelay = Long.MAX_VALUE;
+            intervalEnd = now + interval;
+        }
+        return delay > (overloaded ? target : interval);
+    }
+
+    /**
+     * Record that the queue was found empty.  An empty queue has no standing delay, so the current interval does not
+     * count towards overload.
+     */
+    public synchronized void drained() {
+        minimumDelay = 0L;
+    }
+
+    /**
+     * Get the human-readable representation of this controller.
+     *
+     * @return the string
+     */
+    public String toString() {
+        return "CoDel controller (target " + target + " ns, interval " + interval + " ns" + (overloaded ? ", overloaded)" : ")");
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+/**
+ * An invocation processor which coalesces concurrent identical invocations.  Invocations are identical if they have
+ * the same declaring class, method identifier and argument values, and equal values for each of the configured property
+ * keys.  Only the first of a group of identical invocations is passed on to the next processor; the others wait for
+ * it to complete and receive a copy of its reply, or an {@code InvocationException} with the same cause.
+ * <p>
+ * Since the waiting invocations are never executed, only methods which opt in are coalesced: those annotated with
+ * {@link Cacheable} or {@link Idempotent} on the declaring class, and those configured via
+ * {@link #setCoalesced(Class, MethodIdentifier, boolean)}.  All other invocations are passed on unchanged.
+ * <p>
+ * A streaming reply is never shared, since its publisher may only be subscribed once: annotated methods which return a
+ * {@link Flow.Publisher} are not coalesced, and if a coalesced invocation nevertheless produces a streaming reply, each
+ * waiting invocation is then passed on by itself.
+ */
+public final class CoalescingInvocationProcessor implements InvocationProcessor {
+
+    private final Object[] propertyKeys;
+    private final ConcurrentMap<InvocationKey, Flight> flights = new ConcurrentHashMap<InvocationKey, Flight>();
+    // held by each declaring class, so that it does not keep redeployed class loaders reachable
+    private final ClassValue<ConcurrentMap<MethodIdentifier, Boolean>> methodPolicies = new ClassValue<ConcurrentMap<MethodIdentifier, Boolean>>() {
+        protected ConcurrentMap<MethodIdentifier, Boolean> computeValue(final Class<?> type) {
+            return new ConcurrentHashMap<MethodIdentifier, Boolean>();
+        }
+    };
+
+    /**
+     * Construct a new instance.
+     *
+     * @param propertyKeys the keys of the invocation properties which must also be equal for invocations to be
+     *      coalesced
+     */
+    public CoalescingInvocationProcessor(final Object... propertyKeys) {
+        this.propertyKeys = propertyKeys == null ? new Object[0] : propertyKeys.clone();
+        for (Object propertyKey : this.propertyKeys) {
+            if (propertyKey == null) {
+                throw new IllegalArgumentException("propertyKey is null");
+            }
+        }
+    }
+
+    /**
+     * Specify whether invocations of a method may be coalesced, overriding any {@link Cacheable} or {@link Idempotent}
+     * annotation.
+     *
+     * @param declaringClass the declaring class of the method
+     * @param methodIdentifier the method identifier
+     * @param coalesced {@code true} if concurrent identical invocations of the method may share one execution
+     */
+    public void setCoalesced(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final boolean coalesced) {
+        if (declaringClass == null) {
+            throw new IllegalArgumentException("declaringClass is null");
+        }
+        if (methodIdentifier == null) {
+            throw new IllegalArgumentException("methodIdentifier is null");
+        }
+        methodPolicies.get(declaringClass).put(methodIdentifier, Boolean.valueOf(coalesced));
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply processInvocation(final InvocationProcessorContext context, final Invocation invocation) throws InvocationException, IllegalArgumentException {
+        if (! isCoalesced(invocation.getDeclaringClass(), invocation.getMethodIdentifier())) {
+            return context.invokeNext(invocation);
+        }
+        final InvocationKey key = new InvocationKey(invocation, propertyKeys);
+        final Flight flight = new Flight();
+        final Flight existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            final InvocationReply reply = existing.await();
+            // null if the reply cannot be shared
+            return reply == null ? context.invokeNext(invocation) : reply;
+        }
+        try {
+            final InvocationReply reply = context.invokeNext(invocation);
+            flight.reply = reply;
+            return reply;
+        } catch (InvocationException e) {
+            flight.problem = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.problem = e;
+            throw e;
+        } catch (Error e) {
+            flight.problem = e;
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            flight.latch.countDown();
+        }
+    }
+
+    private boolean isCoalesced(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        final ConcurrentMap<MethodIdentifier, Boolean> methodPolicies = this.methodPolicies.get(declaringClass);
+        Boolean policy = methodPolicies.get(methodIdentifier);
+        if (policy == null) {
+            policy = Boolean.valueOf(isAnnotatedCoalesced(declaringClass, methodIdentifier));
+            final Boolean appearing = methodPolicies.putIfAbsent(methodIdentifier, policy);
+            if (appearing != null) {
+                policy = appearing;
+            }
+        }
+        return policy.booleanValue();
+    }
+
+    private static boolean isAnnotatedCoalesced(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        final Method method;
+        try {
+            method = methodIdentifier.getPublicMethod(declaringClass);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        return (method.isAnnotationPresent(Cacheable.class) || method.isAnnotationPresent(Idempotent.class)) && ! Flow.Publisher.class.isAssignableFrom(method.getReturnType());
+    }
+
+    private static final class Flight {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private InvocationReply reply;
+        private Throwable problem;
+
+        InvocationReply await() throws InvocationException {
+            boolean intr = false;
+            try {
+                for (;;) try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    intr = true;
+                }
+            } finally {
+                if (intr) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final Throwable problem = this.problem;
+            if (problem instanceof InvocationException) {
+                throw new InvocationException(problem.getMessage(), problem.getCause());
+            } else if (problem != null) {
+                throw new InvocationException(problem);
+            }
+            return reply.isStreaming() ? null : reply.withProperties(reply.getProperties());
+        }
+    }
+}
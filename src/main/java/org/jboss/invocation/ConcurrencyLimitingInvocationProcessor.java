@@ -0,0 +1,240 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An invocation processor which limits the number of concurrently executing invocations.  The limit is adjusted
+ * continuously from observed latencies using a Vegas-style algorithm: the minimum observed latency is taken as the
+ * no-load latency, the amount of queueing downstream is estimated from how far recent latencies exceed it, and the limit
+ * is raised while that estimate is small and lowered when it grows.
+ * <p>
+ * Invocations in excess of the limit wait up to the configured maximum time for a permit, and are then rejected with an
+ * {@code InvocationException} whose cause is a {@link RejectedExecutionException}.  The limit may be shared by all
+ * invocations which pass through this processor, or tracked separately for each method.  To limit a dispatcher which
+ * is not itself a chain, wrap it in an {@link InvocationProcessorChain} with this processor.
+ */
+@NonRetaining
+public final class ConcurrencyLimitingInvocationProcessor implements InvocationProcessor {
+
+    private final int initialLimit;
+    private final int maximumLimit;
+    private final long maximumWait;
+    private final Limiter sharedLimiter;
+    // held by each declaring class, so that it does not keep redeployed class loaders reachable
+    private final ClassValue<ConcurrentMap<MethodIdentifier, Limiter>> methodLimiters;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param initialLimit the initial concurrency limit
+     * @param maximumLimit the maximum concurrency limit
+     * @param maximumWait the maximum time to wait for a permit once the limit is reached, or {@code 0} to reject
+     *      immediately
+     * @param unit the unit of {@code maximumWait}
+     * @param perMethod {@code true} to track a separate limit for each method, {@code false} to share one limit
+     */
+    public ConcurrencyLimitingInvocationProcessor(final int initialLimit, final int maximumLimit, final long maximumWait, final TimeUnit unit, final boolean perMethod) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit must be at least 1");
+        }
+        if (maximumLimit < initialLimit) {
+            throw new IllegalArgumentException("maximumLimit is less than initialLimit");
+        }
+        if (maximumWait < 0) {
+            throw new IllegalArgumentException("maximumWait is negative");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null");
+        }
+        this.initialLimit = initialLimit;
+        this.maximumLimit = maximumLimit;
+        this.maximumWait = unit.toNanos(maximumWait);
+        if (perMethod) {
+            sharedLimiter = null;
+            methodLimiters = new ClassValue<ConcurrentMap<MethodIdentifier, Limiter>>() {
+                protected ConcurrentMap<MethodIdentifier, Limiter> computeValue(final Class<?> type) {
+                    return new ConcurrentHashMap<MethodIdentifier, Limiter>();
+                }
+            };
+        } else {
+            sharedLimiter = new Limiter(initialLimit, maximumLimit);
+            methodLimiters = null;
+        }
+    }
+
+    /**
+     * Construct a new instance which shares one limit for all invocations and rejects excess invocations immediately.
+     *
+     * @param initialLimit the initial concurrency limit
+     * @param maximumLimit the maximum concurrency limit
+     */
+    public ConcurrencyLimitingInvocationProcessor(final int initialLimit, final int maximumLimit) {
+        this(initialLimit, maximumLimit, 0L, TimeUnit.NANOSECONDS, false);
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply processInvocation(final InvocationProcessorContext context, final Invocation invocation) throws InvocationException, IllegalArgumentException {
+        final Limiter limiter = getLimiter(invocation);
+        if (! limiter.acquire(maximumWait)) {
+            throw new InvocationException(new RejectedExecutionException("Concurrency limit of " + limiter.limit + " reached for " + invocation.getMethodIdentifier()));
+        }
+        final long start = System.nanoTime();
+        try {
+            return context.invokeNext(invocation);
+        } finally {
+            limiter.release(System.nanoTime() - start);
+        }
+    }
+
+    private Limiter getLimiter(final Invocation invocation) {
+        final Limiter sharedLimiter = this.sharedLimiter;
+        if (sharedLimiter != null) {
+            return sharedLimiter;
+        }
+        final ConcurrentMap<MethodIdentifier, Limiter> methodLimiters = this.methodLimiters.get(invocation.getDeclaringClass());
+        final MethodIdentifier methodIdentifier = invocation.getMethodIdentifier();
+        Limiter limiter = methodLimiters.get(methodIdentifier);
+        if (limiter == null) {
+            limiter = new Limiter(initialLimit, maximumLimit);
+            final Limiter appearing = methodLimiters.putIfAbsent(methodIdentifier, limiter);
+            if (appearing != null) {
+                limiter = appearing;
+            }
+        }
+        return limiter;
+    }
+
+    private static final class Limiter {
+
+        /**
+         * The number of samples after which the no-load latency estimate is discarded, so that a permanent shift in
+         * latency is eventually accepted as the new baseline.
+         */
+        private static final int MIN_LATENCY_RESET_SAMPLES = 1000;
+
+        private final int maximumLimit;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final ReentrantLock waitLock = new ReentrantLock();
+        private final Condition permitReleased = waitLock.newCondition();
+        private final ReentrantLock sampleLock = new ReentrantLock();
+        private volatile int limit;
+        // protected by sampleLock
+        private long minLatency = Long.MAX_VALUE;
+        private int samples;
+
+        Limiter(final int initialLimit, final int maximumLimit) {
+            this.maximumLimit = maximumLimit;
+            limit = initialLimit;
+        }
+
+        boolean acquire(final long maximumWait) {
+            if (tryAcquire()) {
+                return true;
+            }
+            if (maximumWait == 0L) {
+                return false;
+            }
+            final ReentrantLock waitLock = this.waitLock;
+            waitLock.lock();
+            waiters.incrementAndGet();
+            try {
+                long remaining = maximumWait;
+                while (! tryAcquire()) {
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+                    try {
+                        remaining = permitReleased.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                waiters.decrementAndGet();
+                waitLock.unlock();
+            }
+        }
+
+        private boolean tryAcquire() {
+            final AtomicInteger inFlight = this.inFlight;
+            int current;
+            do {
+                current = inFlight.get();
+                if (current >= limit) {
+                    return false;
+                }
+            } while (! inFlight.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void release(final long latency) {
+            final int current = inFlight.getAndDecrement();
+            // sampling is best-effort; a contended sample is simply dropped
+            if (sampleLock.tryLock()) try {
+                sample(latency, current);
+            } finally {
+                sampleLock.unlock();
+            }
+            if (waiters.get() > 0) {
+                waitLock.lock();
+                try {
+                    permitReleased.signal();
+                } finally {
+                    waitLock.unlock();
+                }
+            }
+        }
+
+        private void sample(final long latency, final int inFlight) {
+            if (++samples >= MIN_LATENCY_RESET_SAMPLES) {
+                samples = 0;
+                minLatency = Long.MAX_VALUE;
+            }
+            if (latency < minLatency) {
+                minLatency = Math.max(1L, latency);
+            }
+            final int limit = this.limit;
+            final double log = Math.max(1.0, Math.log10(limit));
+            final double queued = limit * (1.0 - (double) minLatency / (double) Math.max(1L, latency));
+            int newLimit = limit;
+            if (queued > 6.0 * log) {
+                newLimit = limit - (int) log;
+            } else if (queued < 3.0 * log && inFlight * 2 >= limit) {
+                // only grow when the limit is actually being used
+                newLimit = limit + (int) log;
+            }
+            this.limit = Math.max(1, Math.min(maximumLimit, newLimit));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which an invocation must complete.  Deadlines are measured with {@link System#nanoTime()}, so
+ * they are unaffected by changes to the wall clock.
+ * <p>
+ * Since {@code nanoTime} values are meaningless in another JVM, a deadline is serialized as the time remaining when it
+ * is written, and becomes that far in the future of the receiver's clock when it is read.  A deadline carried in the
+ * {@link Keys#DEADLINE} property of a remote invocation therefore shrinks by the time spent at each hop; only the time
+ * in transit is not deducted.
+ *
+ * @see Keys#DEADLINE
+ * @see DeadlineInvocationProcessor
+ */
+public final class Deadline implements Comparable<Deadline>, Serializable {
+
+    private static final long serialVersionUID = 2385306466720843577L;
+
+    /**
+     * A {@code Deadline} is written by way of an {@code Externalizable} proxy object.  Thus, no fields are ever
+     * serialized for this object.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = new ObjectStreamField[0];
+
+    /**
+     * The furthest a deadline may be from now, in either direction; about 146 years.  Deadlines are compared by the
+     * difference of their {@code nanoTime} values, which cannot overflow as long as both are within this range.
+     */
+    private static final long MAXIMUM_REMAINING = Long.MAX_VALUE >> 1;
+
+    private final long nanoTime;
+
+    private Deadline(final long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Get a deadline the given amount of time from now.
+     *
+     * @param time the time remaining; a time too long to represent is taken as effectively never
+     * @param unit the unit of {@code time}
+     * @return the deadline
+     */
+    public static Deadline after(final long time, final TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null");
+        }
+        return fromNow(unit.toNanos(time));
+    }
+
+    /**
+     * Get a deadline the given number of nanoseconds from now.  A larger time than can be represented means that the
+     * deadline is effectively never reached.
+     */
+    static Deadline fromNow(final long remaining) {
+        return new Deadline(System.nanoTime() + Math.max(-MAXIMUM_REMAINING, Math.min(MAXIMUM_REMAINING, remaining)));
+    }
+
+    /**
+     * Get the time remaining until this deadline.
+     *
+     * @param unit the unit of the result
+     * @return the time remaining, which is zero or negative if the deadline has passed
+     */
+    public long getRemaining(final TimeUnit unit) {
+        return unit.convert(nanoTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Determine whether this deadline has passed.
+     *
+     * @return {@code true} if the deadline has passed
+     */
+    public boolean isExpired() {
+        return nanoTime - System.nanoTime() <= 0L;
+    }
+
+    /**
+     * Get the {@link System#nanoTime()} value of this deadline.
+     *
+     * @return the deadline time
+     */
+    long getNanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * Compare this deadline to another.  Earlier deadlines are ordered first.
+     *
+     * @param other the other deadline
+     * @return a negative, zero or positive value if this deadline is earlier than, the same as, or later than the other
+     */
+    public int compareTo(final Deadline other) {
+        return Long.signum(nanoTime - other.nanoTime);
+    }
+
+    /**
+     * Determine whether this object is equal to another.
+     *
+     * @param other the other object
+     * @return {@code true} if they are equal, {@code false} otherwise
+     */
+    public boolean equals(final Object other) {
+        return other instanceof Deadline && nanoTime == ((Deadline) other).nanoTime;
+    }
+
+    /**
+     * Get the hash code of this deadline.
+     *
+     * @return the hash code
+     */
+    public int hashCode() {
+        return (int) (nanoTime ^ nanoTime >>> 32);
+    }
+
+    protected Object writeReplace() {
+        return new Serialized(nanoTime - System.nanoTime());
+    }
+
+    /**
+     * Get the human-readable representation of this deadline.
+     *
+     * @return the string
+     */
+    public String toString() {
+        return "deadline in " + getRemaining(TimeUnit.MILLISECONDS) + " ms";
+    }
+
+    static final class Serialized implements Externalizable {
+
+        private static final long serialVersionUID = -5180935719645453306L;
+
+        private long remaining;
+
+        public Serialized(final long remaining) {
+            this.remaining = remaining;
+        }
+
+        public Serialized() {
+        }
+
+        public void writeExternal(final ObjectOutput objectOutput) throws IOException {
+            objectOutput.writeLong(remaining);
+        }
+
+        public void readExternal(final ObjectInput objectInput) throws IOException {
+            remaining = objectInput.readLong();
+        }
+
+        protected Object readResolve() {
+            return fromNow(remaining);
+        }
+    }
+}
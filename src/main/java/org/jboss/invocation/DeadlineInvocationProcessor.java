@@ -0,0 +1,59 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An invocation processor which rejects invocations whose {@link Keys#DEADLINE} has already passed, so that no work is
+ * done for a caller which has given up.  A rejected invocation fails with an {@code InvocationException} whose cause is
+ * a {@link TimeoutException}.  Invocations without a deadline are passed on unchanged.  Place an instance in the chain
+ * of every hop, so that an invocation which expires in transit or in a queue is discarded as early as possible.
+ */
+@NonRetaining
+public final class DeadlineInvocationProcessor implements InvocationProcessor {
+
+    /**
+     * Construct a new instance.
+     */
+    public DeadlineInvocationProcessor() {
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply processInvocation(final InvocationProcessorContext context, final Invocation invocation) throws InvocationException, IllegalArgumentException {
+        final Deadline deadline = invocation.getProperties().getProperty(Keys.DEADLINE, Deadline.class);
+        if (deadline != null && deadline.isExpired()) {
+            throw expired(invocation, deadline);
+        }
+        return context.invokeNext(invocation);
+    }
+
+    static InvocationException expired(final Invocation invocation, final Deadline deadline) {
+        return new InvocationException(new TimeoutException("Deadline passed " + -deadline.getRemaining(TimeUnit.MILLISECONDS) + " ms before dispatch of " + invocation.getMethodIdentifier()));
+    }
+
+    public String toString() {
+        return "deadline processor";
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+/**
+ * An approximate frequency counter (a count-min sketch with four-bit saturating counters) used to decide whether a new
+ * cache entry is worth admitting in place of an eviction victim.  Counters are periodically halved so that the sketch
+ * ages out historic popularity.  This class is not thread-safe.
+ */
+final class FrequencySketch {
+
+    private static final int[] SEEDS = { 0x97cb3127, 0xbe8e5a3d, 0x7f4a7c15, 0x9e3779b9 };
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param maximumSize the maximum number of entries of the cache which this sketch serves
+     */
+    FrequencySketch(final int maximumSize) {
+        final int length = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 24)) - 1) << 3;
+        table = new byte[length];
+        mask = length - 1;
+        sampleSize = Math.max(maximumSize, 1) * 10;
+    }
+
+    void increment(final int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            final int idx = indexOf(hash, i);
+            if (table[idx] < MAX_COUNT) {
+                table[idx]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(final int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, table[indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(final int hash, final int i) {
+        int h = (hash + SEEDS[i]) * SEEDS[i];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private void reset() {
+        final byte[] table = this.table;
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+        additions >>>= 1;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An invocation dispatcher which reduces tail latency by hedging invocations of idempotent methods.  An invocation is
+ * first sent to one downstream dispatcher; if it has not completed after the hedging delay, a duplicate is sent to the
+ * next dispatcher.  The first successful reply is returned and the outstanding attempt is cancelled.  If the first
+ * attempt to complete fails, the other attempt is awaited.
+ * <p>
+ * The hedging delay for each method is the observed 95th percentile latency of that method, or the configured default
+ * delay until enough samples have been collected.  Methods are idempotent if they are annotated with
+ * {@link Idempotent} on the declaring class or configured via {@link #setIdempotent(Class, MethodIdentifier, boolean)};
+ * all other invocations, all invocations with stream arguments (which can only be consumed once), and all invocations
+ * if there is only one downstream dispatcher, are dispatched directly on the calling thread without hedging.  Attempts of idempotent methods
+ * run on the given executor, which should be able to run at least two tasks per concurrent caller.
+ */
+public final class HedgingInvocationDispatcher implements InvocationDispatcher {
+
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int MINIMUM_SAMPLES = 20;
+    private static final int DECAY_INTERVAL = 2048;
+
+    private final Executor executor;
+    private final InvocationDispatcher[] dispatchers;
+    private final long defaultDelay;
+    private final AtomicInteger next = new AtomicInteger();
+    // held by each declaring class, so that it does not keep redeployed class loaders reachable
+    private final ClassValue<ConcurrentMap<MethodIdentifier, MethodState>> methodStates = new ClassValue<ConcurrentMap<MethodIdentifier, MethodState>>() {
+        protected ConcurrentMap<MethodIdentifier, MethodState> computeValue(final Class<?> type) {
+            return new ConcurrentHashMap<MethodIdentifier, MethodState>();
+        }
+    };
+
+    /**
+     * Construct a new instance.
+     *
+     * @param executor the executor used to run invocation attempts
+     * @param defaultDelay the hedging delay to use until enough latency samples have been collected for a method
+     * @param unit the unit of {@code defaultDelay}
+     * @param dispatchers the downstream dispatchers, which must be equivalent
+     */
+    public HedgingInvocationDispatcher(final Executor executor, final long defaultDelay, final TimeUnit unit, final InvocationDispatcher... dispatchers) {
+        this(executor, defaultDelay, unit, Arrays.asList(dispatchers));
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param executor the executor used to run invocation attempts
+     * @param defaultDelay the hedging delay to use until enough latency samples have been collected for a method
+     * @param unit the unit of {@code defaultDelay}
+     * @param dispatchers the downstream dispatchers, which must be equivalent
+     */
+    public HedgingInvocationDispatcher(final Executor executor, final long defaultDelay, final TimeUnit unit, final Collection<InvocationDispatcher> dispatchers) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        if (defaultDelay < 0) {
+            throw new IllegalArgumentException("defaultDelay is negative");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null");
+        }
+        if (dispatchers.isEmpty()) {
+            throw new IllegalArgumentException("dispatchers is empty");
+        }
+        this.executor = executor;
+        this.defaultDelay = unit.toNanos(defaultDelay);
+        this.dispatchers = dispatchers.toArray(new InvocationDispatcher[dispatchers.size()]);
+        for (InvocationDispatcher dispatcher : this.dispatchers) {
+            if (dispatcher == null) {
+                throw new IllegalArgumentException("dispatcher is null");
+            }
+        }
+    }
+
+    /**
+     * Specify whether a method is idempotent, overriding any {@link Idempotent} annotation.
+     *
+     * @param declaringClass the declaring class of the method
+     * @param methodIdentifier the method identifier
+     * @param idempotent {@code true} if invocations of the method may be hedged
+     */
+    public void setIdempotent(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final boolean idempotent) {
+        if (declaringClass == null) {
+            throw new IllegalArgumentException("declaringClass is null");
+        }
+        if (methodIdentifier == null) {
+            throw new IllegalArgumentException("methodIdentifier is null");
+        }
+        final ConcurrentMap<MethodIdentifier, MethodState> methodStates = this.methodStates.get(declaringClass);
+        final MethodState oldState = methodStates.get(methodIdentifier);
+        methodStates.put(methodIdentifier, new MethodState(idempotent, oldState == null ? new LatencyHistogram(DECAY_INTERVAL) : oldState.latencies));
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
+        final InvocationDispatcher[] dispatchers = this.dispatchers;
+        final int first = (next.getAndIncrement() & Integer.MAX_VALUE) % dispatchers.length;
+        final MethodState state = getMethodState(invocation);
+        // a hedge to the same dispatcher would double its load without avoiding the delay
+        if (! state.idempotent || dispatchers.length == 1 || StreamArguments.hasStream(invocation.getArgs())) {
+            return dispatchers[first].dispatch(invocation);
+        }
+        final CompletionService<InvocationReply> completionService = new ExecutorCompletionService<InvocationReply>(executor);
+        final Future<InvocationReply> primary = completionService.submit(new Attempt(dispatchers[first], invocation, state.latencies));
+        Future<InvocationReply> hedge = null;
+        try {
+            Future<InvocationReply> done = completionService.poll(hedgeDelay(state.latencies), TimeUnit.NANOSECONDS);
+            if (done == null) {
+                final Invocation duplicate = new Invocation(invocation.getProperties(), invocation.getDeclaringClass(), invocation.getMethodIdentifier(), invocation.getArgs().clone());
+                hedge = completionService.submit(new Attempt(dispatchers[(first + 1) % dispatchers.length], duplicate, state.latencies));
+                done = completionService.take();
+                if (isFailed(done)) {
+                    done = completionService.take();
+                }
+            }
+            return done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InvocationException("Interrupted while awaiting hedged invocation", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof InvocationException) {
+                throw (InvocationException) cause;
+            }
+            throw new InvocationException(cause);
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    private long hedgeDelay(final LatencyHistogram latencies) {
+        return latencies.getCount() < MINIMUM_SAMPLES ? defaultDelay : latencies.percentile(HEDGE_PERCENTILE);
+    }
+
+    private static boolean isFailed(final Future<InvocationReply> future) throws InterruptedException {
+        try {
+            future.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    private MethodState getMethodState(final Invocation invocation) {
+        final Class<?> declaringClass = invocation.getDeclaringClass();
+        final MethodIdentifier methodIdentifier = invocation.getMethodIdentifier();
+        final ConcurrentMap<MethodIdentifier, MethodState> methodStates = this.methodStates.get(declaringClass);
+        MethodState state = methodStates.get(methodIdentifier);
+        if (state == null) {
+            state = new MethodState(isAnnotatedIdempotent(declaringClass, methodIdentifier), new LatencyHistogram(DECAY_INTERVAL));
+            final MethodState appearing = methodStates.putIfAbsent(methodIdentifier, state);
+            if (appearing != null) {
+                state = appearing;
+            }
+        }
+        return state;
+    }
+
+    private static boolean isAnnotatedIdempotent(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        final Method method;
+        try {
+            method = methodIdentifier.getPublicMethod(declaringClass);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        return method.isAnnotationPresent(Idempotent.class);
+    }
+
+    public String toString() {
+        return "hedging dispatcher to " + Arrays.asList(dispatchers);
+    }
+
+    private static final class MethodState {
+        private final boolean idempotent;
+        private final LatencyHistogram latencies;
+
+        MethodState(final boolean idempotent, final LatencyHistogram latencies) {
+            this.idempotent = idempotent;
+            this.latencies = latencies;
+        }
+    }
+
+    private static final class Attempt implements Callable<InvocationReply> {
+        private final InvocationDispatcher dispatcher;
+        private final Invocation invocation;
+        private final LatencyHistogram latencies;
+
+        Attempt(final InvocationDispatcher dispatcher, final Invocation invocation, final LatencyHistogram latencies) {
+            this.dispatcher = dispatcher;
+            this.invocation = invocation;
+            this.latencies = latencies;
+        }
+
+        public InvocationReply call() throws InvocationException {
+            final long start = System.nanoTime();
+            final InvocationReply reply = dispatcher.dispatch(invocation);
+            latencies.record(System.nanoTime() - start);
+            return reply;
+        }
+    }
+}
@@ -28,6 +28,8 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.security.Permission;
+import java.util.concurrent.Flow;
+import org.jboss.marshalling.FieldSetter;
 import org.jboss.marshalling.cloner.ClassLoaderClassCloner;
 import org.jboss.marshalling.cloner.ClonerConfiguration;
 import org.jboss.marshalling.cloner.ObjectCloner;
@@ -51,10 +53,30 @@ public final class Invocation implements Serializable {
      */
     public static final Permission INVOCATION_PERMISSION = new RuntimePermission("invocation");
 
+    private static final FieldSetter argsSetter = FieldSetter.get(Invocation.class, "args");
+    private static final FieldSetter methodIdentifierSetter = FieldSetter.get(Invocation.class, "methodIdentifier");
+
+    /**
+     * Whether a serialized invocation may identify its method by fingerprint alone.  Readers older than fingerprints
+     * cannot read such an invocation, so this is off unless the system property
+     * {@code org.jboss.invocation.fingerprints} is {@code true}, which should only be set once every peer can read
+     * fingerprints.  Fingerprints are always accepted when reading.
+     */
+    private static final boolean FINGERPRINTS = getFingerprints();
+
     /**
      * This field contains the method-call arguments.
      */
     private final Object[] args;
+    /**
+     * This field contains the values of primitive arguments, or {@code null} if all arguments are held in
+     * {@link #args}.  A primitive argument is held here if its entry in {@code args} is {@code null}.
+     */
+    private final long[] primitiveArgs;
+    /**
+     * This field caches the arguments with the primitive arguments boxed.
+     */
+    private transient volatile Object[] boxedArgs;
     /**
      * This field contains the declaring class of the method that was invoked.
      */
@@ -68,6 +90,11 @@ public final class Invocation implements Serializable {
      * time, it is written as {@code null} to conserve bandwidth.
      */
     private transient volatile InvocationProperties properties;
+    /**
+     * This field contains the frame which owns this invocation, or {@code null} if it is not recycled.  The method and
+     * arguments of a recycled invocation are held by its frame, so that the fields above stay final.
+     */
+    private final transient InvocationFrames.Frame frame;
 
     private static final Object[] NO_OBJECTS = new Object[0];
 
@@ -80,6 +107,24 @@ public final class Invocation implements Serializable {
      * @param args the arguments passed to the invoked method
      */
     public Invocation(final InvocationProperties properties, final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Object[] args) {
+        this(properties, declaringClass, methodIdentifier, args, null);
+    }
+
+    /**
+     * Construct a new instance with unboxed primitive arguments.  Each primitive parameter may be passed either boxed
+     * in {@code args}, or unboxed in the corresponding element of {@code primitiveArgs} with a {@code null} entry in
+     * {@code args}.  Unboxed values are encoded as follows: integral and {@code char} values are widened to
+     * {@code long}, {@code boolean} values are {@code 1} or {@code 0}, {@code float} values are the result of
+     * {@link Float#floatToRawIntBits(float)}, and {@code double} values are the result of
+     * {@link Double#doubleToRawLongBits(double)}.
+     *
+     * @param properties the invocation properties, or {@code null} for none
+     * @param declaringClass the declaring class of the invoked method
+     * @param methodIdentifier the method identifier of the invoked method
+     * @param args the arguments passed to the invoked method
+     * @param primitiveArgs the unboxed primitive arguments, or {@code null} if all arguments are in {@code args}
+     */
+    public Invocation(final InvocationProperties properties, final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Object[] args, final long[] primitiveArgs) {
         if (declaringClass == null) {
             throw new IllegalArgumentException("declaringClass is null");
         }
@@ -87,9 +132,28 @@ public final class Invocation implements Serializable {
             throw new IllegalArgumentException("methodIdentifier is null");
         }
         this.args = defaulted(args, NO_OBJECTS);
+        if (primitiveArgs != null && primitiveArgs.length != this.args.length) {
+            throw new IllegalArgumentException("primitiveArgs length does not match args length");
+        }
+        this.primitiveArgs = primitiveArgs;
         this.declaringClass = declaringClass;
         this.methodIdentifier = methodIdentifier;
         this.properties = defaulted(properties, InvocationProperties.EMPTY);
+        frame = null;
+    }
+
+    /**
+     * Construct a new recyclable instance for an invocation frame.
+     *
+     * @param frame the owning frame
+     */
+    Invocation(final InvocationFrames.Frame frame) {
+        args = NO_OBJECTS;
+        primitiveArgs = null;
+        declaringClass = Object.class;
+        methodIdentifier = MethodIdentifier.TO_STRING;
+        properties = InvocationProperties.EMPTY;
+        this.frame = frame;
     }
 
     /**
@@ -134,6 +198,30 @@ public final class Invocation implements Serializable {
         this(null, method.getDeclaringClass(), MethodIdentifier.getIdentifierForMethod(method), args);
     }
 
+    /**
+     * Reinitialize a recyclable instance.
+     *
+     * @param declaringClass the declaring class of the invoked method
+     * @param methodIdentifier the identifier of the invoked method
+     * @param args the arguments of the invocation
+     */
+    void reset(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Object[] args) {
+        final InvocationFrames.Frame frame = this.frame;
+        frame.declaringClass = declaringClass;
+        frame.methodIdentifier = methodIdentifier;
+        frame.args = defaulted(args, NO_OBJECTS);
+        properties = InvocationProperties.EMPTY;
+    }
+
+    /**
+     * Get the frame which owns this invocation.
+     *
+     * @return the frame, or {@code null} if this invocation is not recycled
+     */
+    InvocationFrames.Frame getFrame() {
+        return frame;
+    }
+
     //-------------------------------------------------------------------------------------||
     // Contracts --------------------------------------------------------------------------||
     //-------------------------------------------------------------------------------------||
@@ -144,7 +232,8 @@ public final class Invocation implements Serializable {
      * @return the declaring class
      */
     public Class<?> getDeclaringClass() {
-        return declaringClass;
+        final InvocationFrames.Frame frame = this.frame;
+        return frame == null ? declaringClass : frame.declaringClass;
     }
 
     /**
@@ -153,16 +242,173 @@ public final class Invocation implements Serializable {
      * @return the identifier
      */
     public MethodIdentifier getMethodIdentifier() {
-        return methodIdentifier;
+        final InvocationFrames.Frame frame = this.frame;
+        return frame == null ? methodIdentifier : frame.methodIdentifier;
+    }
+
+    private Object[] args() {
+        final InvocationFrames.Frame frame = this.frame;
+        return frame == null ? args : frame.args;
     }
 
     /**
-     * Returns the arguments to be passed along to this method invocation
+     * Returns the arguments to be passed along to this method invocation.  Any unboxed primitive arguments are boxed.
      *
      * @return the method call arguments
      */
     public Object[] getArgs() {
-        return args;
+        if (primitiveArgs == null) {
+            return args();
+        }
+        Object[] boxedArgs = this.boxedArgs;
+        if (boxedArgs == null) {
+            boxedArgs = this.boxedArgs = boxArgs();
+        }
+        return boxedArgs;
+    }
+
+    /**
+     * Get a single argument.  An unboxed primitive argument is boxed.
+     *
+     * @param index the argument index
+     * @return the argument
+     */
+    public Object getArg(final int index) {
+        final Object arg = args()[index];
+        return arg == null && primitiveArgs != null ? box(methodIdentifier.getParameterType(index), primitiveArgs[index]) : arg;
+    }
+
+    /**
+     * Get a {@code boolean} argument without boxing.
+     *
+     * @param index the argument index
+     * @return the argument
+     * @throws ClassCastException if the argument is not a boolean
+     */
+    public boolean getBooleanArg(final int index) throws ClassCastException {
+        final Object arg = args()[index];
+        if (arg == null && primitiveArgs != null) {
+            final String type = methodIdentifier.getParameterType(index);
+            if (! "boolean".equals(type)) {
+                throw new ClassCastException(type + " argument is not a boolean");
+            }
+            return primitiveArgs[index] != 0L;
+        }
+        return ((Boolean) arg).booleanValue();
+    }
+
+    /**
+     * Get an {@code int} argument without boxing.  Other integral and {@code char} arguments are converted.
+     *
+     * @param index the argument index
+     * @return the argument
+     * @throws ClassCastException if the argument is not an integral number or character
+     */
+    public int getIntArg(final int index) throws ClassCastException {
+        final Object arg = args()[index];
+        if (arg == null && primitiveArgs != null) {
+            return (int) integralSlot(index);
+        }
+        return arg instanceof Character ? ((Character) arg).charValue() : integral(arg).intValue();
+    }
+
+    /**
+     * Get a {@code long} argument without boxing.  Other integral and {@code char} arguments are converted.
+     *
+     * @param index the argument index
+     * @return the argument
+     * @throws ClassCastException if the argument is not an integral number or character
+     */
+    public long getLongArg(final int index) throws ClassCastException {
+        final Object arg = args()[index];
+        if (arg == null && primitiveArgs != null) {
+            return integralSlot(index);
+        }
+        return arg instanceof Character ? ((Character) arg).charValue() : integral(arg).longValue();
+    }
+
+    private long integralSlot(final int index) throws ClassCastException {
+        final String type = methodIdentifier.getParameterType(index);
+        if (! ("int".equals(type) || "long".equals(type) || "char".equals(type) || "short".equals(type) || "byte".equals(type))) {
+            throw new ClassCastException(type + " argument is not an integral number or character");
+        }
+        return primitiveArgs[index];
+    }
+
+    private static Number integral(final Object arg) throws ClassCastException {
+        if (arg instanceof Float || arg instanceof Double) {
+            throw new ClassCastException(arg.getClass().getName() + " argument is not an integral number or character");
+        }
+        return (Number) arg;
+    }
+
+    /**
+     * Get a {@code double} argument without boxing.  Other numeric arguments are converted.
+     *
+     * @param index the argument index
+     * @return the argument
+     * @throws ClassCastException if the argument is not a number
+     */
+    public double getDoubleArg(final int index) throws ClassCastException {
+        final Object arg = args()[index];
+        if (arg == null && primitiveArgs != null) {
+            final long bits = primitiveArgs[index];
+            final String type = methodIdentifier.getParameterType(index);
+            if ("double".equals(type)) {
+                return Double.longBitsToDouble(bits);
+            } else if ("float".equals(type)) {
+                return Float.intBitsToFloat((int) bits);
+            } else if ("int".equals(type) || "long".equals(type) || "short".equals(type) || "byte".equals(type)) {
+                return bits;
+            } else {
+                throw new ClassCastException(type + " argument is not a number");
+            }
+        }
+        return ((Number) arg).doubleValue();
+    }
+
+    /**
+     * Determine whether this invocation carries any unboxed primitive arguments.
+     *
+     * @return {@code true} if there are unboxed primitive arguments
+     */
+    public boolean hasPrimitiveArgs() {
+        return primitiveArgs != null;
+    }
+
+    private Object[] boxArgs() {
+        final Object[] args = this.args;
+        final long[] primitiveArgs = this.primitiveArgs;
+        final Object[] boxedArgs = args.clone();
+        for (int i = 0; i < boxedArgs.length; i++) {
+            if (boxedArgs[i] == null) {
+                boxedArgs[i] = box(methodIdentifier.getParameterType(i), primitiveArgs[i]);
+            }
+        }
+        return boxedArgs;
+    }
+
+    private static Object box(final String type, final long bits) {
+        if ("int".equals(type)) {
+            return Integer.valueOf((int) bits);
+        } else if ("long".equals(type)) {
+            return Long.valueOf(bits);
+        } else if ("boolean".equals(type)) {
+            return Boolean.valueOf(bits != 0L);
+        } else if ("double".equals(type)) {
+            return Double.valueOf(Double.longBitsToDouble(bits));
+        } else if ("float".equals(type)) {
+            return Float.valueOf(Float.intBitsToFloat((int) bits));
+        } else if ("byte".equals(type)) {
+            return Byte.valueOf((byte) bits);
+        } else if ("short".equals(type)) {
+            return Short.valueOf((short) bits);
+        } else if ("char".equals(type)) {
+            return Character.valueOf((char) bits);
+        } else {
+            // a genuinely null reference argument
+            return null;
+        }
     }
 
     /**
@@ -191,8 +437,9 @@ public final class Invocation implements Serializable {
      */
     public String toString() {
         final StringBuilder b = new StringBuilder();
-        b.append("Invocation of ").append(methodIdentifier.toString()).append(" of ").append(declaringClass);
+        b.append("Invocation of ").append(getMethodIdentifier().toString()).append(" of ").append(getDeclaringClass());
         b.append(" with arguments (");
+        final Object[] args = getArgs();
         for (int i = 0; i < args.length; i++) {
             b.append(args[i]);
             if (i < args.length - 1) {
@@ -207,6 +454,10 @@ public final class Invocation implements Serializable {
      * Create a cloned invocation to another class loader.  All of the classes referenced by the invocation must be
      * visible (either from the same or different class loaders) to the new class loader.  Note that the invocation
      * itself will still be of the same type as this one.
+     * <p>
+     * Stream arguments ({@code InputStream}s, {@code ReadableByteChannel}s and {@code Flow.Publisher}s) are not
+     * copied; they are passed to the cloned invocation as they are, except that the elements of a publisher other than
+     * {@code ByteBuffer}s are cloned as they are delivered.
      *
      * @param classLoader the destination class loader
      * @return the cloned invocation
@@ -220,35 +471,93 @@ public final class Invocation implements Serializable {
         final ClassLoaderClassCloner classCloner = new ClassLoaderClassCloner(classLoader);
         configuration.setClassCloner(classCloner);
         final ObjectCloner cloner = clonerFactory.createCloner(configuration);
+        final Object[] args = args();
         final Object[] newArgs = new Object[args.length];
         for (int i = 0; i < args.length; i++) {
-            newArgs[i] = cloner.clone(args[i]);
+            final Object arg = args[i];
+            if (arg instanceof Flow.Publisher) {
+                newArgs[i] = new CloningPublisher((Flow.Publisher<?>) arg, classLoader);
+            } else {
+                newArgs[i] = arg == null || StreamArguments.isStream(arg) ? arg : cloner.clone(arg);
+            }
         }
-        return new Invocation(properties, classCloner.clone(declaringClass), methodIdentifier, newArgs);
+        return new Invocation(properties, classCloner.clone(getDeclaringClass()), getMethodIdentifier(), newArgs, primitiveArgs == null ? null : primitiveArgs.clone());
     }
 
     //-------------------------------------------------------------------------------------||
     // Serialization ----------------------------------------------------------------------||
     //-------------------------------------------------------------------------------------||
 
+    private static boolean getFingerprints() {
+        try {
+            return Boolean.getBoolean("org.jboss.invocation.fingerprints");
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
     private void writeObject(ObjectOutputStream oos) throws IOException {
-        oos.defaultWriteObject();
+        final Object[] args = args();
+        final Object[] serialArgs = StreamArguments.replaceStreams(args);
+        final boolean compressed = args.length > 0 && PayloadCompression.isEnabled();
+        final Class<?> declaringClass = getDeclaringClass();
+        final MethodIdentifier methodIdentifier = getMethodIdentifier();
+        final long fingerprint = FINGERPRINTS ? methodIdentifier.getFingerprint() : 0L;
+        // the fingerprint alone identifies the method if the receiver can resolve it unambiguously from the class
+        final boolean fingerprinted = FINGERPRINTS && methodIdentifier.equals(MethodIdentifier.getIdentifierForFingerprint(declaringClass, fingerprint));
+        // the fields of a frame invocation are placeholders, so its values are always written explicitly
+        if (serialArgs == args && ! compressed && ! fingerprinted && frame == null) {
+            oos.defaultWriteObject();
+        } else {
+            final ObjectOutputStream.PutField fields = oos.putFields();
+            // null args marks a compressed argument payload, and a null method identifier marks a fingerprint;
+            // both follow the fields, fingerprint first
+            fields.put("args", compressed ? null : serialArgs);
+            fields.put("primitiveArgs", primitiveArgs);
+            fields.put("declaringClass", declaringClass);
+            fields.put("methodIdentifier", fingerprinted ? null : methodIdentifier);
+            oos.writeFields();
+            if (fingerprinted) {
+                oos.writeLong(fingerprint);
+            }
+            if (compressed) {
+                PayloadCompression.writePayload(oos, serialArgs);
+            }
+        }
         final InvocationProperties properties = this.properties;
         oos.writeObject(properties.isEmpty() ? null : properties);
+        if (serialArgs != args) {
+            // stream content follows the invocation, in argument order
+            StreamArguments.writeStreams(oos, args);
+        }
     }
 
     private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
         ois.defaultReadObject();
-        if (args == null) {
-            throw new InvalidObjectException("args is null");
+        if (declaringClass == null) {
+            throw new InvalidObjectException("declaringClass is null");
         }
         if (methodIdentifier == null) {
-            throw new InvalidObjectException("methodIdentifier is null");
+            final long fingerprint = ois.readLong();
+            final MethodIdentifier methodIdentifier = MethodIdentifier.getIdentifierForFingerprint(declaringClass, fingerprint);
+            if (methodIdentifier == null) {
+                throw new InvalidObjectException("No unique method of " + declaringClass + " has fingerprint " + Long.toHexString(fingerprint));
+            }
+            methodIdentifierSetter.set(this, methodIdentifier);
         }
-        if (declaringClass == null) {
-            throw new InvalidObjectException("declaringClass is null");
+        Object[] args = this.args;
+        if (args == null) {
+            final Object payload = PayloadCompression.readPayload(ois);
+            if (! (payload instanceof Object[])) {
+                throw new InvalidObjectException("args is null");
+            }
+            args = (Object[]) payload;
+        }
+        if (primitiveArgs != null && primitiveArgs.length != args.length) {
+            throw new InvalidObjectException("primitiveArgs length does not match args length");
         }
         properties = defaulted((InvocationProperties) ois.readObject(), InvocationProperties.EMPTY);
+        argsSetter.set(this, StreamArguments.readStreams(ois, args));
     }
 
     private static <T> T defaulted(T value, T defaultValue) {
@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events emitted by the invocation framework.  Events are only populated and committed when they are
+ * enabled in a recording; otherwise the cost is limited to the (usually elided) event allocation and a clock check.
+ */
+final class InvocationEvents {
+
+    private InvocationEvents() {
+    }
+
+    static final String CATEGORY = "JBoss Invocation";
+
+    /**
+     * Base type for all invocation events.
+     */
+    @Category(CATEGORY)
+    @StackTrace(false)
+    abstract static class InvocationEvent extends Event {
+        @Label("Declaring Class")
+        Class<?> declaringClass;
+
+        @Label("Method")
+        String method;
+
+        void setInvocation(final Invocation invocation) {
+            declaringClass = invocation.getDeclaringClass();
+            method = invocation.getMethodIdentifier().toString();
+        }
+    }
+
+    /**
+     * The dispatch of an invocation through an entire {@link InvocationProcessorChain}.
+     */
+    @Name("org.jboss.invocation.ChainDispatch")
+    @Label("Chain Dispatch")
+    @Description("Dispatch of an invocation through a processor chain, including the final dispatcher")
+    static final class ChainDispatchEvent extends InvocationEvent {
+        @Label("Processor Count")
+        int processorCount;
+    }
+
+    /**
+     * A single {@link InvocationProcessor} hop, including all downstream processing.
+     */
+    @Name("org.jboss.invocation.ProcessInvocation")
+    @Label("Process Invocation")
+    @Description("Invocation of a single processor in a chain, including downstream processing")
+    static final class ProcessorEvent extends InvocationEvent {
+        @Label("Processor")
+        Class<?> processor;
+
+        @Label("Position")
+        int position;
+    }
+
+    /**
+     * A reflective dispatch to a target object by {@link ObjectInvocationDispatcher}.
+     */
+    @Name("org.jboss.invocation.ObjectDispatch")
+    @Label("Object Dispatch")
+    @Description("Reflective invocation of a method on a target object")
+    static final class ObjectDispatchEvent extends InvocationEvent {
+        @Label("Target Class")
+        Class<?> targetClass;
+    }
+
+    /**
+     * A class loader clone step performed by {@link PassByValueInvocationProcessor}.
+     */
+    @Name("org.jboss.invocation.Clone")
+    @Label("Pass-By-Value Clone")
+    @Description("Cloning of an invocation or its reply to another class loader")
+    static final class CloneEvent extends InvocationEvent {
+        @Label("Reply")
+        @Description("True if the reply was cloned, false if the invocation was cloned")
+        boolean reply;
+    }
+}
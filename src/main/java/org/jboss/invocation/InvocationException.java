@@ -70,4 +70,17 @@ public class InvocationException extends Exception {
     public InvocationException(final String msg, final Throwable cause) {
         super(msg, cause);
     }
+
+    /**
+     * Constructs a {@code InvocationException} with the specified detail message and cause, and optionally without
+     * a stack trace.  An exception without a stack trace is much cheaper to construct, and is appropriate for
+     * exceptions which only serve to carry their cause.
+     *
+     * @param msg the detail message
+     * @param cause the cause (which is saved for later retrieval by the {@link #getCause()} method)
+     * @param writableStackTrace {@code false} to construct the exception without filling in a stack trace
+     */
+    public InvocationException(final String msg, final Throwable cause, final boolean writableStackTrace) {
+        super(msg, cause, true, writableStackTrace);
+    }
 }
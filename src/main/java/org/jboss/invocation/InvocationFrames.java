@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.Arrays;
+
+/**
+ * A per-thread stack of reusable invocation frames.  Each frame holds an {@link Invocation} and an
+ * {@link InvocationReply} which are reinitialized for every synchronous invocation made in the frame, so that an
+ * in-VM invocation through a dispatcher which retains neither need not allocate them.  The changing contents of a
+ * frame's invocation and reply are held by the frame itself, so that both classes keep their fields final for every
+ * other instance.  Frames are stacked so that
+ * invocations made by a target while handling another framed invocation get their own frame.
+ */
+final class InvocationFrames {
+
+    private static final ThreadLocal<InvocationFrames> FRAMES = new ThreadLocal<InvocationFrames>() {
+        protected InvocationFrames initialValue() {
+            return new InvocationFrames();
+        }
+    };
+
+    private Frame[] frames = new Frame[4];
+    private int depth;
+
+    private InvocationFrames() {
+    }
+
+    /**
+     * Enter a new frame on the current thread.  The frame must be exited by the same thread with {@link Frame#exit()}.
+     *
+     * @return the frame
+     */
+    static Frame enter() {
+        return FRAMES.get().push();
+    }
+
+    private Frame push() {
+        final int depth = this.depth;
+        Frame[] frames = this.frames;
+        if (depth == frames.length) {
+            frames = this.frames = Arrays.copyOf(frames, depth << 1);
+        }
+        Frame frame = frames[depth];
+        if (frame == null) {
+            frame = frames[depth] = new Frame(this);
+        }
+        this.depth = depth + 1;
+        return frame;
+    }
+
+    /**
+     * Determine whether an invocation dispatcher or processor is known not to retain invocations or replies.  A
+     * processor chain does not retain them if none of its members do.
+     *
+     * @param object the dispatcher or processor
+     * @return {@code true} if it is safe to recycle invocations which are passed to {@code object}
+     */
+    static boolean isNonRetaining(final Object object) {
+        if (object instanceof InvocationProcessorChain) {
+            final InvocationProcessorChain chain = (InvocationProcessorChain) object;
+            if (! isNonRetaining(chain.getDispatcher())) {
+                return false;
+            }
+            for (InvocationProcessor processor : chain.getProcessors()) {
+                if (! isNonRetaining(processor)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return object != null && object.getClass().isAnnotationPresent(NonRetaining.class);
+    }
+
+    /**
+     * A single invocation frame.
+     */
+    static final class Frame {
+        private final InvocationFrames owner;
+        private final Invocation invocation;
+        private final InvocationReply reply;
+
+        // the current contents of the frame's invocation and reply, which keep their own fields final
+        Class<?> declaringClass;
+        MethodIdentifier methodIdentifier;
+        Object[] args;
+        Object replyValue;
+
+        Frame(final InvocationFrames owner) {
+            this.owner = owner;
+            invocation = new Invocation(this);
+            reply = new InvocationReply(this);
+            invocation.reset(Object.class, MethodIdentifier.TO_STRING, null);
+        }
+
+        /**
+         * Get this frame's invocation, reinitialized with the given values.
+         *
+         * @param declaringClass the declaring class of the invoked method
+         * @param methodIdentifier the identifier of the invoked method
+         * @param args the arguments of the invocation
+         * @return the invocation
+         */
+        Invocation getInvocation(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Object[] args) {
+            invocation.reset(declaringClass, methodIdentifier, args);
+            return invocation;
+        }
+
+        /**
+         * Get this frame's reply, reinitialized with the given value.
+         *
+         * @param value the reply value
+         * @return the reply
+         */
+        InvocationReply getReply(final Object value) {
+            reply.reset(value);
+            return reply;
+        }
+
+        /**
+         * Exit this frame, releasing any references held by it.
+         */
+        void exit() {
+            invocation.reset(Object.class, MethodIdentifier.TO_STRING, null);
+            reply.reset(null);
+            owner.depth--;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.Arrays;
+
+/**
+ * A hash key which identifies an invocation by its declaring class, method identifier and argument values, and
+ * optionally by the values of some of its properties.  Argument arrays are compared deeply.  Keys are only valid as
+ * long as the argument values are not mutated.
+ */
+final class InvocationKey {
+
+    private static final Object[] NO_OBJECTS = new Object[0];
+
+    private final Class<?> declaringClass;
+    private final MethodIdentifier methodIdentifier;
+    private final Object[] args;
+    private final Object[] propertyValues;
+    private final int hashCode;
+
+    private InvocationKey(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Object[] args, final Object[] propertyValues) {
+        this.declaringClass = declaringClass;
+        this.methodIdentifier = methodIdentifier;
+        this.args = args == null || args.length == 0 ? NO_OBJECTS : args.clone();
+        this.propertyValues = propertyValues;
+        hashCode = ((declaringClass.hashCode() * 31 + methodIdentifier.hashCode()) * 31 + Arrays.deepHashCode(this.args)) * 31 + Arrays.hashCode(propertyValues);
+    }
+
+    InvocationKey(final Class<?> declaringClass, final MethodIdentifier methodIdentifier, final Object[] args) {
+        this(declaringClass, methodIdentifier, args, NO_OBJECTS);
+    }
+
+    InvocationKey(final Invocation invocation) {
+        this(invocation.getDeclaringClass(), invocation.getMethodIdentifier(), invocation.getArgs(), NO_OBJECTS);
+    }
+
+    InvocationKey(final Invocation invocation, final Object[] propertyKeys) {
+        this(invocation.getDeclaringClass(), invocation.getMethodIdentifier(), invocation.getArgs(), propertyValuesOf(invocation.getProperties(), propertyKeys));
+    }
+
+    private static Object[] propertyValuesOf(final InvocationProperties properties, final Object[] propertyKeys) {
+        if (propertyKeys.length == 0) {
+            return NO_OBJECTS;
+        }
+        final Object[] values = new Object[propertyKeys.length];
+        for (int i = 0; i < propertyKeys.length; i++) {
+            values[i] = properties.getProperty(propertyKeys[i]);
+        }
+        return values;
+    }
+
+    Class<?> getDeclaringClass() {
+        return declaringClass;
+    }
+
+    MethodIdentifier getMethodIdentifier() {
+        return methodIdentifier;
+    }
+
+    boolean isSameMethod(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        return this.declaringClass == declaringClass && this.methodIdentifier.equals(methodIdentifier);
+    }
+
+    public boolean equals(final Object other) {
+        return other instanceof InvocationKey && equals((InvocationKey) other);
+    }
+
+    public boolean equals(final InvocationKey other) {
+        return this == other || other != null && hashCode == other.hashCode && declaringClass == other.declaringClass && methodIdentifier.equals(other.methodIdentifier) && Arrays.deepEquals(args, other.args) && Arrays.equals(propertyValues, other.propertyValues);
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    public String toString() {
+        return "Invocation key for " + methodIdentifier + " of " + declaringClass + " with arguments " + Arrays.deepToString(args);
+    }
+}
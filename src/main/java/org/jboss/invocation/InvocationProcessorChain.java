@@ -22,19 +22,32 @@
 
 package org.jboss.invocation;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * A dispatcher which passes invocations through a processor chain.
+ * A dispatcher which passes invocations through a processor chain.  If any of the processors is a
+ * {@link SelectiveInvocationProcessor}, the chain computes and caches the processors which apply to each method the
+ * first time the method is invoked; processors which do not apply are skipped entirely.
+ * <p>
+ * A chain whose final dispatcher is itself a chain is flattened at construction time into a single chain with the
+ * processors of both, so nesting chains adds no cost per invocation.
+ * <p>
+ * A {@link InvocationTimingListener} may be set at any time to measure the time spent in each processor and in the
+ * final dispatcher.  Without a listener, the chain does no timing at all.
  *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class InvocationProcessorChain implements InvocationDispatcher {
     private final InvocationDispatcher dispatcher;
     private final List<InvocationProcessor> processors;
+    private final InvocationProcessor[] processorArray;
+    private final ClassValue<ConcurrentMap<MethodIdentifier, InvocationProcessor[]>> methodProcessors;
+    private volatile InvocationTimingListener timingListener;
 
     /**
      * Construct a new instance.
@@ -43,8 +56,10 @@ public final class InvocationProcessorChain implements InvocationDispatcher {
      * @param processors the processors which make up this chain
      */
     public InvocationProcessorChain(final InvocationDispatcher dispatcher, final InvocationProcessor... processors) {
-        this.dispatcher = dispatcher;
-        this.processors = Arrays.asList(processors.clone());
+        this.dispatcher = finalDispatcherOf(dispatcher);
+        processorArray = flatten(processors, dispatcher);
+        this.processors = Arrays.asList(processorArray);
+        methodProcessors = createMethodProcessors(processorArray);
     }
 
     /**
@@ -54,22 +69,222 @@ public final class InvocationProcessorChain implements InvocationDispatcher {
      * @param processors the processors which make up this chain
      */
     public InvocationProcessorChain(final InvocationDispatcher dispatcher, final Collection<InvocationProcessor> processors) {
-        this.dispatcher = dispatcher;
-        this.processors = Arrays.asList(processors.toArray(new InvocationProcessor[processors.size()]));
+        this.dispatcher = finalDispatcherOf(dispatcher);
+        processorArray = flatten(processors.toArray(new InvocationProcessor[processors.size()]), dispatcher);
+        this.processors = Arrays.asList(processorArray);
+        methodProcessors = createMethodProcessors(processorArray);
+    }
+
+    private static InvocationDispatcher finalDispatcherOf(final InvocationDispatcher dispatcher) {
+        return dispatcher instanceof InvocationProcessorChain ? ((InvocationProcessorChain) dispatcher).dispatcher : dispatcher;
+    }
+
+    private static InvocationProcessor[] flatten(final InvocationProcessor[] processors, final InvocationDispatcher dispatcher) {
+        if (! (dispatcher instanceof InvocationProcessorChain)) {
+            return processors.clone();
+        }
+        // the nested chain was itself flattened when it was constructed
+        final InvocationProcessor[] nested = ((InvocationProcessorChain) dispatcher).processorArray;
+        final InvocationProcessor[] flattened = Arrays.copyOf(processors, processors.length + nested.length);
+        System.arraycopy(nested, 0, flattened, processors.length, nested.length);
+        return flattened;
+    }
+
+    /**
+     * Create the per-method processor cache, if any processor is selective.  The cache is held by each declaring class,
+     * so it does not keep redeployed class loaders reachable.
+     */
+    private static ClassValue<ConcurrentMap<MethodIdentifier, InvocationProcessor[]>> createMethodProcessors(final InvocationProcessor[] processors) {
+        for (InvocationProcessor processor : processors) {
+            if (processor instanceof SelectiveInvocationProcessor) {
+                return new ClassValue<ConcurrentMap<MethodIdentifier, InvocationProcessor[]>>() {
+                    protected ConcurrentMap<MethodIdentifier, InvocationProcessor[]> computeValue(final Class<?> type) {
+                        return new ConcurrentHashMap<MethodIdentifier, InvocationProcessor[]>();
+                    }
+                };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the final dispatcher of this chain.
+     *
+     * @return the final dispatcher
+     */
+    InvocationDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Get the processors which make up this chain.
+     *
+     * @return the processors
+     */
+    List<InvocationProcessor> getProcessors() {
+        return processors;
+    }
+
+    /**
+     * Get the timing listener of this chain.
+     *
+     * @return the timing listener, or {@code null} if timing is off
+     */
+    public InvocationTimingListener getTimingListener() {
+        return timingListener;
+    }
+
+    /**
+     * Set the timing listener of this chain, turning timing on or off.  Invocations already in progress are not
+     * affected.  A chain which has been flattened into another chain is timed by the listener of the outer chain.
+     *
+     * @param timingListener the timing listener, or {@code null} to turn timing off
+     */
+    public void setTimingListener(final InvocationTimingListener timingListener) {
+        this.timingListener = timingListener;
     }
 
     /** {@inheritDoc} */
     public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
-        final Iterator<InvocationProcessor> i = processors.iterator();
-        final InvocationProcessorContext context = new InvocationProcessorContext() {
-            public InvocationReply invokeNext(final Invocation invocation) throws InvocationException {
-                if (i.hasNext()) {
-                    return i.next().processInvocation(this, invocation);
-                } else {
+        final InvocationProcessor[] processors = getProcessors(invocation.getDeclaringClass(), invocation.getMethodIdentifier());
+        final InvocationTimingListener timingListener = this.timingListener;
+        final InvocationEvents.ChainDispatchEvent event = new InvocationEvents.ChainDispatchEvent();
+        event.begin();
+        try {
+            if (timingListener != null) {
+                return new TimedContext(processors, timingListener).invokeNext(invocation);
+            }
+            return new Context(processors).invokeNext(invocation);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.setInvocation(invocation);
+                event.processorCount = processors.length;
+                event.commit();
+            }
+        }
+    }
+
+    private InvocationProcessor[] getProcessors(final Class<?> declaringClass, final MethodIdentifier methodIdentifier) {
+        if (this.methodProcessors == null) {
+            return processorArray;
+        }
+        final ConcurrentMap<MethodIdentifier, InvocationProcessor[]> methodProcessors = this.methodProcessors.get(declaringClass);
+        InvocationProcessor[] processors = methodProcessors.get(methodIdentifier);
+        if (processors == null) {
+            final List<InvocationProcessor> list = new ArrayList<InvocationProcessor>(processorArray.length);
+            for (InvocationProcessor processor : processorArray) {
+                if (! (processor instanceof SelectiveInvocationProcessor) || ((SelectiveInvocationProcessor) processor).appliesTo(declaringClass, methodIdentifier)) {
+                    list.add(processor);
+                }
+            }
+            processors = list.toArray(new InvocationProcessor[list.size()]);
+            final InvocationProcessor[] appearing = methodProcessors.putIfAbsent(methodIdentifier, processors);
+            if (appearing != null) {
+                processors = appearing;
+            }
+        }
+        return processors;
+    }
+
+    /**
+     * Call a processor through a call site dedicated to its position in the chain.  A single shared call site sees
+     * every processor type in the system and cannot be inlined; with one site per position, each site sees only the
+     * processor types found at that position.
+     * <p>
+     * This method is static, so its call sites are shared by every chain in the JVM: the site for a position profiles
+     * the processors at that position across all chains.  It can only be inlined where the chains agree on the
+     * processor type at that position, such as a common leading security or transaction processor; where chains of
+     * different shapes put different processors at the same position, the site is as megamorphic as a shared one.
+     */
+    private static InvocationReply invoke(final int position, final InvocationProcessor processor, final InvocationProcessorContext context, final Invocation invocation) throws InvocationException {
+        switch (position) {
+            case 0: return processor.processInvocation(context, invocation);
+            case 1: return processor.processInvocation(context, invocation);
+            case 2: return processor.processInvocation(context, invocation);
+            case 3: return processor.processInvocation(context, invocation);
+            case 4: return processor.processInvocation(context, invocation);
+            case 5: return processor.processInvocation(context, invocation);
+            case 6: return processor.processInvocation(context, invocation);
+            case 7: return processor.processInvocation(context, invocation);
+            default: return processor.processInvocation(context, invocation);
+        }
+    }
+
+    private final class Context implements InvocationProcessorContext {
+        private final InvocationProcessor[] processors;
+        private int position;
+
+        Context(final InvocationProcessor[] processors) {
+            this.processors = processors;
+        }
+
+        public InvocationReply invokeNext(final Invocation invocation) throws InvocationException {
+            final int position = this.position;
+            if (position == processors.length) {
+                return dispatcher.dispatch(invocation);
+            }
+            final InvocationProcessor processor = processors[position];
+            this.position = position + 1;
+            final InvocationEvents.ProcessorEvent event = new InvocationEvents.ProcessorEvent();
+            event.begin();
+            try {
+                return invoke(position, processor, this, invocation);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.setInvocation(invocation);
+                    event.processor = processor.getClass();
+                    event.position = position;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private final class TimedContext implements InvocationProcessorContext {
+        private final InvocationProcessor[] processors;
+        private final InvocationTimingListener timingListener;
+        private int position;
+        // the time spent in stages after the current one, so far
+        private long downstreamTime;
+
+        TimedContext(final InvocationProcessor[] processors, final InvocationTimingListener timingListener) {
+            this.processors = processors;
+            this.timingListener = timingListener;
+        }
+
+        public InvocationReply invokeNext(final Invocation invocation) throws InvocationException {
+            final int position = this.position;
+            final long start = System.nanoTime();
+            if (position == processors.length) {
+                try {
                     return dispatcher.dispatch(invocation);
+                } finally {
+                    timingListener.dispatcherTime(invocation.getDeclaringClass(), invocation.getMethodIdentifier(), dispatcher, System.nanoTime() - start);
+                    // the listener's own time is charged downstream too, so it is excluded from the self times
+                    downstreamTime += System.nanoTime() - start;
+                }
+            }
+            final InvocationProcessor processor = processors[position];
+            this.position = position + 1;
+            final long upstreamDownstreamTime = downstreamTime;
+            downstreamTime = 0L;
+            final InvocationEvents.ProcessorEvent event = new InvocationEvents.ProcessorEvent();
+            event.begin();
+            try {
+                return invoke(position, processor, this, invocation);
+            } finally {
+                event.end();
+                timingListener.processorTime(invocation.getDeclaringClass(), invocation.getMethodIdentifier(), position, processor, System.nanoTime() - start - downstreamTime);
+                if (event.shouldCommit()) {
+                    event.setInvocation(invocation);
+                    event.processor = processor.getClass();
+                    event.position = position;
+                    event.commit();
                 }
+                downstreamTime = upstreamDownstreamTime + System.nanoTime() - start;
             }
-        };
-        return context.invokeNext(invocation);
+        }
     }
 }
@@ -24,7 +24,10 @@ package org.jboss.invocation;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.concurrent.Flow;
+import org.jboss.marshalling.FieldSetter;
 import org.jboss.marshalling.cloner.ClassLoaderClassCloner;
 import org.jboss.marshalling.cloner.ClonerConfiguration;
 import org.jboss.marshalling.cloner.ObjectCloner;
@@ -33,21 +36,84 @@ import org.jboss.marshalling.cloner.ObjectCloners;
 
 /**
  * An invocation reply.  Includes the return value, along with any attachments that may have been set along the way.
+ * <p>
+ * Replies with a {@code boolean}, {@code int}, {@code long} or {@code double} value may be created with the
+ * {@code valueOf} methods, in which case the value is stored without boxing and may be read back without boxing by
+ * way of the typed accessors such as {@link #getIntReply()}.  The shared instances {@link #NULL}, {@link #VOID},
+ * {@link #TRUE} and {@link #FALSE} are immutable; use {@link #withProperties(InvocationProperties)} to attach
+ * properties to them.  {@link ObjectInvocationDispatcher} returns them for {@code void}, {@code null} and
+ * {@code boolean} results, so processors which attach properties to a reply they did not create should use
+ * {@code withProperties} rather than {@link #setProperties(InvocationProperties)}.
+ * <p>
+ * A reply whose value is a {@link Flow.Publisher} is a streaming reply: the elements of the result are produced and
+ * consumed incrementally, with demand signalled by the consumer.  See {@link IterablePublisher} for a simple way for a
+ * target to produce one.
  */
 public final class InvocationReply implements Serializable {
 
     private static final long serialVersionUID = 4330152364952496586L;
 
+    private static final byte KIND_OBJECT = 0;
+    private static final byte KIND_BOOLEAN = 1;
+    private static final byte KIND_INT = 2;
+    private static final byte KIND_LONG = 3;
+    private static final byte KIND_DOUBLE = 4;
+    // only appears in the serial form; the reply value follows as a compressed payload
+    private static final byte KIND_PAYLOAD = 5;
+    // only appears in the serial form; the elements of a streaming reply follow
+    private static final byte KIND_STREAM = 6;
+
     /**
-     * The method return value.
+     * The method return value, if it is not stored as a primitive.
      *
      * @serial
      */
     private final Object reply;
+    /**
+     * The kind of the reply value.
+     *
+     * @serial
+     */
+    private final byte kind;
+    /**
+     * The reply value bits, if it is stored as a primitive.
+     *
+     * @serial
+     */
+    private final long primitiveReply;
+    /**
+     * {@code true} if this is a shared instance whose properties may not be changed.
+     */
+    private final transient boolean shared;
     /**
      * The invocation properties.
      */
     private transient volatile InvocationProperties properties;
+    /**
+     * The frame which owns this reply, or {@code null} if it is not recycled.  The value of a recycled reply is held by
+     * its frame, so that the fields above stay final.
+     */
+    private final transient InvocationFrames.Frame frame;
+
+    private static final FieldSetter replySetter = FieldSetter.get(InvocationReply.class, "reply");
+    private static final FieldSetter kindSetter = FieldSetter.get(InvocationReply.class, "kind");
+
+    /**
+     * A shared reply with a {@code null} value.
+     */
+    public static final InvocationReply NULL = new InvocationReply(KIND_OBJECT, null, 0L, InvocationProperties.EMPTY, true);
+    /**
+     * A shared reply for methods which return {@code void}.
+     */
+    public static final InvocationReply VOID = new InvocationReply(KIND_OBJECT, null, 0L, InvocationProperties.EMPTY, true);
+    /**
+     * A shared reply with a {@code true} value.
+     */
+    public static final InvocationReply TRUE = new InvocationReply(KIND_BOOLEAN, null, 1L, InvocationProperties.EMPTY, true);
+    /**
+     * A shared reply with a {@code false} value.
+     */
+    public static final InvocationReply FALSE = new InvocationReply(KIND_BOOLEAN, null, 0L, InvocationProperties.EMPTY, true);
 
     /**
      * Construct a new instance.
@@ -55,7 +121,7 @@ public final class InvocationReply implements Serializable {
      * @param reply the reply
      */
     public InvocationReply(final Object reply) {
-        this.reply = reply;
+        this(KIND_OBJECT, reply, 0L, null, false);
     }
 
     /**
@@ -65,17 +131,193 @@ public final class InvocationReply implements Serializable {
      * @param properties the initial invocation properties
      */
     public InvocationReply(final Object reply, final InvocationProperties properties) {
+        this(KIND_OBJECT, reply, 0L, properties, false);
+    }
+
+    private InvocationReply(final byte kind, final Object reply, final long primitiveReply, final InvocationProperties properties, final boolean shared) {
+        this.kind = kind;
         this.reply = reply;
+        this.primitiveReply = primitiveReply;
         this.properties = properties;
+        this.shared = shared;
+        frame = null;
+    }
+
+    /**
+     * Construct a new recyclable instance for an invocation frame.
+     *
+     * @param frame the owning frame
+     */
+    InvocationReply(final InvocationFrames.Frame frame) {
+        kind = KIND_OBJECT;
+        reply = null;
+        primitiveReply = 0L;
+        shared = false;
+        this.frame = frame;
+    }
+
+    /**
+     * Reinitialize a recyclable instance.
+     *
+     * @param reply the reply value
+     */
+    void reset(final Object reply) {
+        frame.replyValue = reply;
+        properties = null;
+    }
+
+    private Object value() {
+        final InvocationFrames.Frame frame = this.frame;
+        return frame == null ? reply : frame.replyValue;
+    }
+
+    /**
+     * Get a reply for an object value.  Returns a shared instance for {@code null} and {@code Boolean} values.
+     *
+     * @param reply the reply value
+     * @return the reply
+     */
+    public static InvocationReply valueOf(final Object reply) {
+        if (reply == null) {
+            return NULL;
+        } else if (reply instanceof Boolean) {
+            return ((Boolean) reply).booleanValue() ? TRUE : FALSE;
+        } else {
+            return new InvocationReply(reply);
+        }
+    }
+
+    /**
+     * Get the shared reply for a {@code boolean} value.
+     *
+     * @param reply the reply value
+     * @return the shared reply
+     */
+    public static InvocationReply valueOf(final boolean reply) {
+        return reply ? TRUE : FALSE;
+    }
+
+    /**
+     * Get a reply for an {@code int} value.  The value is not boxed.
+     *
+     * @param reply the reply value
+     * @return the reply
+     */
+    public static InvocationReply valueOf(final int reply) {
+        return new InvocationReply(KIND_INT, null, reply, null, false);
     }
 
     /**
-     * Get the reply.
+     * Get a reply for a {@code long} value.  The value is not boxed.
+     *
+     * @param reply the reply value
+     * @return the reply
+     */
+    public static InvocationReply valueOf(final long reply) {
+        return new InvocationReply(KIND_LONG, null, reply, null, false);
+    }
+
+    /**
+     * Get a reply for a {@code double} value.  The value is not boxed.
+     *
+     * @param reply the reply value
+     * @return the reply
+     */
+    public static InvocationReply valueOf(final double reply) {
+        return new InvocationReply(KIND_DOUBLE, null, Double.doubleToRawLongBits(reply), null, false);
+    }
+
+    /**
+     * Get the reply.  Primitive reply values are boxed.
      *
      * @return the reply
      */
     public Object getReply() {
-        return reply;
+        switch (kind) {
+            case KIND_BOOLEAN: return Boolean.valueOf(primitiveReply != 0L);
+            case KIND_INT: return Integer.valueOf((int) primitiveReply);
+            case KIND_LONG: return Long.valueOf(primitiveReply);
+            case KIND_DOUBLE: return Double.valueOf(Double.longBitsToDouble(primitiveReply));
+            default: return value();
+        }
+    }
+
+    /**
+     * Get the reply as a {@code boolean}.
+     *
+     * @return the reply
+     * @throws ClassCastException if the reply is not a boolean
+     * @throws NullPointerException if the reply is {@code null}
+     */
+    public boolean getBooleanReply() throws ClassCastException, NullPointerException {
+        return kind == KIND_BOOLEAN ? primitiveReply != 0L : ((Boolean) getReply()).booleanValue();
+    }
+
+    /**
+     * Get the reply as an {@code int}.
+     *
+     * @return the reply
+     * @throws ClassCastException if the reply is not a number
+     * @throws NullPointerException if the reply is {@code null}
+     */
+    public int getIntReply() throws ClassCastException, NullPointerException {
+        switch (kind) {
+            case KIND_INT:
+            case KIND_LONG: return (int) primitiveReply;
+            default: return ((Number) getReply()).intValue();
+        }
+    }
+
+    /**
+     * Get the reply as a {@code long}.
+     *
+     * @return the reply
+     * @throws ClassCastException if the reply is not a number
+     * @throws NullPointerException if the reply is {@code null}
+     */
+    public long getLongReply() throws ClassCastException, NullPointerException {
+        switch (kind) {
+            case KIND_INT:
+            case KIND_LONG: return primitiveReply;
+            default: return ((Number) getReply()).longValue();
+        }
+    }
+
+    /**
+     * Get the reply as a {@code double}.
+     *
+     * @return the reply
+     * @throws ClassCastException if the reply is not a number
+     * @throws NullPointerException if the reply is {@code null}
+     */
+    public double getDoubleReply() throws ClassCastException, NullPointerException {
+        switch (kind) {
+            case KIND_INT:
+            case KIND_LONG: return primitiveReply;
+            case KIND_DOUBLE: return Double.longBitsToDouble(primitiveReply);
+            default: return ((Number) getReply()).doubleValue();
+        }
+    }
+
+    /**
+     * Determine whether this is a streaming reply.  When a streaming reply is serialized, its publisher is drained and
+     * each element is written in turn; the deserialized reply holds a new publisher of the received elements, which ends
+     * with the original failure if the publisher failed.  Demand is therefore not propagated across the stream.
+     *
+     * @return {@code true} if the reply value is a {@link Flow.Publisher}
+     */
+    public boolean isStreaming() {
+        return value() instanceof Flow.Publisher;
+    }
+
+    /**
+     * Get the publisher of a streaming reply.
+     *
+     * @return the publisher
+     * @throws ClassCastException if this is not a streaming reply
+     */
+    public Flow.Publisher<?> getPublisher() throws ClassCastException {
+        return (Flow.Publisher<?>) value();
     }
 
     /**
@@ -91,22 +333,73 @@ public final class InvocationReply implements Serializable {
      * Replace the invocation properties.
      *
      * @param properties the invocation properties
+     * @throws IllegalStateException if this is a shared reply instance
      */
-    public void setProperties(final InvocationProperties properties) {
+    public void setProperties(final InvocationProperties properties) throws IllegalStateException {
+        if (shared) {
+            throw new IllegalStateException("Cannot change the properties of a shared reply");
+        }
         this.properties = properties;
     }
 
+    /**
+     * Get a copy of this reply with different invocation properties.  This method may be used on shared replies.
+     *
+     * @param properties the invocation properties
+     * @return the new reply
+     */
+    public InvocationReply withProperties(final InvocationProperties properties) {
+        return new InvocationReply(kind, value(), primitiveReply, properties, false);
+    }
+
     /**
      * Get the string representation of this object.
      *
      * @return the string representation
      */
     public String toString() {
-        return "Invocation reply with value (" + reply + ")";
+        return "Invocation reply with value (" + getReply() + ")";
+    }
+
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+        final Object reply = value();
+        if (kind == KIND_OBJECT && reply instanceof Flow.Publisher) {
+            final ObjectOutputStream.PutField fields = oos.putFields();
+            fields.put("reply", null);
+            fields.put("kind", KIND_STREAM);
+            fields.put("primitiveReply", 0L);
+            oos.writeFields();
+            StreamArguments.writeElements(oos, (Flow.Publisher<?>) reply);
+        } else if (kind == KIND_OBJECT && reply != null && PayloadCompression.isEnabled()) {
+            final ObjectOutputStream.PutField fields = oos.putFields();
+            fields.put("reply", null);
+            fields.put("kind", KIND_PAYLOAD);
+            fields.put("primitiveReply", 0L);
+            oos.writeFields();
+            PayloadCompression.writePayload(oos, reply);
+        } else if (frame != null) {
+            // the reply field of a frame reply is a placeholder
+            final ObjectOutputStream.PutField fields = oos.putFields();
+            fields.put("reply", reply);
+            fields.put("kind", kind);
+            fields.put("primitiveReply", primitiveReply);
+            oos.writeFields();
+        } else {
+            oos.defaultWriteObject();
+        }
+        final InvocationProperties properties = this.properties;
+        oos.writeObject(properties == null || properties.isEmpty() ? null : properties);
     }
 
     private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
         ois.defaultReadObject();
+        if (kind == KIND_PAYLOAD) {
+            replySetter.set(this, PayloadCompression.readPayload(ois));
+            kindSetter.setByte(this, KIND_OBJECT);
+        } else if (kind == KIND_STREAM) {
+            replySetter.set(this, StreamArguments.readElements(ois));
+            kindSetter.setByte(this, KIND_OBJECT);
+        }
         properties = defaulted((InvocationProperties) ois.readObject(), InvocationProperties.EMPTY);
     }
 
@@ -117,7 +410,8 @@ public final class InvocationReply implements Serializable {
     /**
      * Create a cloned invocation reply to another class loader.  All of the classes referenced by the invocation reply
      * must be visible (either from the same or different class loaders) to the new class loader.  Note that the invocation
-     * itself will still be of the same type as this one.
+     * itself will still be of the same type as this one.  The elements of a streaming reply are cloned individually as
+     * they are delivered.
      *
      * @param classLoader the destination class loader
      * @return the cloned invocation reply
@@ -126,6 +420,16 @@ public final class InvocationReply implements Serializable {
      * @throws IOException if an I/O error occurs during the cloning process
      */
     public InvocationReply cloneTo(ClassLoader classLoader) throws ClassNotFoundException, IOException {
+        if (shared) {
+            return this;
+        }
+        if (kind != KIND_OBJECT) {
+            return new InvocationReply(kind, null, primitiveReply, properties, false);
+        }
+        final Object reply = value();
+        if (reply instanceof Flow.Publisher) {
+            return new InvocationReply(new CloningPublisher((Flow.Publisher<?>) reply, classLoader), properties);
+        }
         final ObjectClonerFactory clonerFactory = ObjectCloners.getSerializingObjectClonerFactory();
         final ClonerConfiguration configuration = new ClonerConfiguration();
         final ClassLoaderClassCloner classCloner = new ClassLoaderClassCloner(classLoader);
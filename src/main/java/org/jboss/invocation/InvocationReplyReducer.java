@@ -0,0 +1,63 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A combiner of the replies to an invocation which was sent to more than one dispatcher.
+ *
+ * @see ScatterGatherInvocationDispatcher
+ */
+public interface InvocationReplyReducer {
+
+    /**
+     * Combine the replies to an invocation.  Fewer replies than dispatchers are given if some dispatchers failed, did
+     * not reply in time, or were not waited for.
+     *
+     * @param invocation the invocation
+     * @param replies the successful replies, in the order in which they were received; never empty
+     * @param dispatched the number of dispatchers the invocation was sent to
+     * @return the combined reply
+     * @throws InvocationException if the replies cannot be combined
+     */
+    InvocationReply reduce(Invocation invocation, List<InvocationReply> replies, int dispatched) throws InvocationException;
+
+    /**
+     * A reducer whose reply is the list of the individual reply values, in the order in which they were received.
+     */
+    InvocationReplyReducer COLLECT = new InvocationReplyReducer() {
+        public InvocationReply reduce(final Invocation invocation, final List<InvocationReply> replies, final int dispatched) {
+            final List<Object> values = new ArrayList<Object>(replies.size());
+            for (InvocationReply reply : replies) {
+                values.add(reply.getReply());
+            }
+            return new InvocationReply(values);
+        }
+
+        public String toString() {
+            return "collecting reducer";
+        }
+    };
+}
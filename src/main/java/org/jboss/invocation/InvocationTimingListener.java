@@ -0,0 +1,56 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+/**
+ * A listener which receives the time spent in each stage of an {@link InvocationProcessorChain}.  Listener methods are
+ * called on the invoking thread as each stage completes, so they should be quick and must be thread-safe.
+ * <p>
+ * A listener is told which method was invoked rather than given the invocation itself, since an invocation may belong
+ * to a per-thread frame which is reused by the next call; the class and identifier may be kept for as long as needed.
+ *
+ * @see InvocationProcessorChain#setTimingListener(InvocationTimingListener)
+ */
+public interface InvocationTimingListener {
+
+    /**
+     * Receive the time spent in a processor, excluding the time spent in the processors and dispatcher after it.
+     *
+     * @param declaringClass the declaring class of the invoked method
+     * @param methodIdentifier the identifier of the invoked method
+     * @param position the position of the processor in the processors applied to the invocation
+     * @param processor the processor
+     * @param selfTime the time spent in the processor itself, in nanoseconds
+     */
+    void processorTime(Class<?> declaringClass, MethodIdentifier methodIdentifier, int position, InvocationProcessor processor, long selfTime);
+
+    /**
+     * Receive the time spent in the final dispatcher of the chain.
+     *
+     * @param declaringClass the declaring class of the invoked method
+     * @param methodIdentifier the identifier of the invoked method
+     * @param dispatcher the final dispatcher
+     * @param time the time spent in the dispatcher, in nanoseconds
+     */
+    void dispatcherTime(Class<?> declaringClass, MethodIdentifier methodIdentifier, InvocationDispatcher dispatcher, long time);
+}
@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher which streams the elements of an {@code Iterable}, such as a lazily evaluated result set, to each
+ * subscriber.  Elements are only taken from the iterator as the subscriber signals demand, on the thread which signals
+ * it, so a target method may return a streaming reply without materializing its results.  Each subscriber receives
+ * the elements of a new iterator.
+ *
+ * @param <T> the element type
+ */
+public final class IterablePublisher<T> implements Flow.Publisher<T> {
+
+    private final Iterable<? extends T> iterable;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param iterable the iterable whose elements should be published
+     */
+    public IterablePublisher(final Iterable<? extends T> iterable) {
+        if (iterable == null) {
+            throw new IllegalArgumentException("iterable is null");
+        }
+        this.iterable = iterable;
+    }
+
+    /** {@inheritDoc} */
+    public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber is null");
+        }
+        final Iterator<? extends T> iterator;
+        try {
+            iterator = iterable.iterator();
+        } catch (RuntimeException e) {
+            final IteratorSubscription<T> subscription = new IteratorSubscription<T>(subscriber, Collections.<T>emptyIterator());
+            subscription.cancel();
+            subscriber.onSubscribe(subscription);
+            subscriber.onError(e);
+            return;
+        }
+        subscriber.onSubscribe(new IteratorSubscription<T>(subscriber, iterator));
+    }
+
+    private static final class IteratorSubscription<T> implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Iterator<? extends T> iterator;
+        private final AtomicLong demand = new AtomicLong();
+        private volatile boolean done;
+
+        IteratorSubscription(final Flow.Subscriber<? super T> subscriber, final Iterator<? extends T> iterator) {
+            this.subscriber = subscriber;
+            this.iterator = iterator;
+        }
+
+        public void request(final long n) {
+            if (n <= 0L) {
+                fail(new IllegalArgumentException("Requested element count must be positive"));
+                return;
+            }
+            long current, updated;
+            do {
+                current = demand.get();
+                updated = current + n < 0L ? Long.MAX_VALUE : current + n;
+            } while (! demand.compareAndSet(current, updated));
+            // the thread which raises the demand from zero emits elements; others just add to it
+            if (current == 0L) {
+                drain(updated);
+            }
+        }
+
+        public void cancel() {
+            done = true;
+        }
+
+        void fail(final Throwable cause) {
+            if (! done) {
+                done = true;
+                subscriber.onError(cause);
+            }
+        }
+
+        private void drain(long requested) {
+            for (;;) {
+                long emitted = 0L;
+                while (emitted != requested) {
+                    if (done) {
+                        return;
+                    }
+                    final T item;
+                    try {
+                        if (! iterator.hasNext()) {
+                            done = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                        item = iterator.next();
+                    } catch (RuntimeException e) {
+                        fail(e);
+                        return;
+                    }
+                    subscriber.onNext(item);
+                    emitted++;
+                }
+                requested = demand.addAndGet(-emitted);
+                if (requested == 0L) {
+                    return;
+                }
+            }
+        }
+    }
+}
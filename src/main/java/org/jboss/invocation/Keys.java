@@ -41,4 +41,12 @@ public enum Keys {
      * The session identifier, for distinguishing between more than one target instance for a given dispatcher.
      */
     SESSION,
+    /**
+     * The priority of the invocation, as an {@link Integer}; invocations with higher values are scheduled first.
+     */
+    PRIORITY,
+    /**
+     * The {@link Deadline} by which the invocation must complete.
+     */
+    DEADLINE,
 }
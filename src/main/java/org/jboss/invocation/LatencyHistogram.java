@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A compact, lock-free latency histogram with logarithmic buckets, used to estimate latency percentiles.  Each power of
+ * two is split into four sub-buckets, which bounds the error of an estimate to 25%.  Counts are halved once the
+ * configured number of samples has been recorded, so estimates track recent behavior.  Concurrent updates are not
+ * atomic with respect to each other; an occasional lost or double-counted sample is tolerated.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final int decayInterval;
+    private volatile long total;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param decayInterval the number of samples after which all counts are halved
+     */
+    LatencyHistogram(final int decayInterval) {
+        this.decayInterval = decayInterval;
+    }
+
+    void record(final long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(0L, nanos)));
+        final long total = this.total + 1;
+        if (total >= decayInterval) {
+            long newTotal = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                final long count = counts.get(i) >>> 1;
+                counts.set(i, count);
+                newTotal += count;
+            }
+            this.total = newTotal;
+        } else {
+            this.total = total;
+        }
+    }
+
+    /**
+     * Get the number of samples currently held.
+     *
+     * @return the sample count
+     */
+    long getCount() {
+        return total;
+    }
+
+    /**
+     * Estimate a latency percentile.  The estimate is the upper bound of the bucket containing the percentile.
+     *
+     * @param fraction the percentile, as a fraction between 0 and 1
+     * @return the estimated latency in nanoseconds, or {@code -1} if there are no samples
+     */
+    long percentile(final double fraction) {
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0L) {
+            return -1L;
+        }
+        final long threshold = (long) Math.ceil(total * fraction);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = bucket & (SUB_BUCKETS - 1);
+        final long lowerBound = (SUB_BUCKETS | subBucket) << (exponent - SUB_BUCKET_BITS);
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + width - 1 < 0 ? Long.MAX_VALUE : lowerBound + width - 1;
+    }
+}
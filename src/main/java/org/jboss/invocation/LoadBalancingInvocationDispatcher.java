@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An invocation dispatcher which spreads invocations over a set of equivalent downstream dispatchers.  For each
+ * invocation, two dispatchers are chosen at random and the invocation is sent to the one with the lower load, which is
+ * estimated from its number of in-flight invocations and an exponentially weighted moving average of its latency.
+ * Until a dispatcher has completed an invocation, its latency is taken to be the average of the others.
+ * <p>
+ * Dispatchers may be added and removed at any time.  The dispatch path never locks; it works on an immutable snapshot
+ * of the dispatcher set.
+ */
+public final class LoadBalancingInvocationDispatcher implements InvocationDispatcher {
+
+    private static final Replica[] NO_REPLICAS = new Replica[0];
+
+    /**
+     * The weight of each new latency sample in the moving average.
+     */
+    private static final double LATENCY_DECAY = 0.2;
+
+    private volatile Replica[] replicas = NO_REPLICAS;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param dispatchers the initial downstream dispatchers
+     */
+    public LoadBalancingInvocationDispatcher(final InvocationDispatcher... dispatchers) {
+        this(Arrays.asList(dispatchers));
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param dispatchers the initial downstream dispatchers
+     */
+    public LoadBalancingInvocationDispatcher(final Collection<InvocationDispatcher> dispatchers) {
+        for (InvocationDispatcher dispatcher : dispatchers) {
+            addDispatcher(dispatcher);
+        }
+    }
+
+    /**
+     * Add a downstream dispatcher.
+     *
+     * @param dispatcher the dispatcher to add
+     * @return {@code true} if the dispatcher was added, {@code false} if it was already present
+     */
+    public synchronized boolean addDispatcher(final InvocationDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher is null");
+        }
+        final Replica[] replicas = this.replicas;
+        for (Replica replica : replicas) {
+            if (replica.dispatcher == dispatcher) {
+                return false;
+            }
+        }
+        final Replica[] newReplicas = Arrays.copyOf(replicas, replicas.length + 1);
+        newReplicas[replicas.length] = new Replica(dispatcher);
+        this.replicas = newReplicas;
+        return true;
+    }
+
+    /**
+     * Remove a downstream dispatcher.  Invocations already sent to the dispatcher are not affected.
+     *
+     * @param dispatcher the dispatcher to remove
+     * @return {@code true} if the dispatcher was removed, {@code false} if it was not present
+     */
+    public synchronized boolean removeDispatcher(final InvocationDispatcher dispatcher) {
+        final Replica[] replicas = this.replicas;
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i].dispatcher == dispatcher) {
+                final Replica[] newReplicas = new Replica[replicas.length - 1];
+                System.arraycopy(replicas, 0, newReplicas, 0, i);
+                System.arraycopy(replicas, i + 1, newReplicas, i, newReplicas.length - i);
+                this.replicas = newReplicas;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the current downstream dispatchers.
+     *
+     * @return the dispatchers
+     */
+    public List<InvocationDispatcher> getDispatchers() {
+        final Replica[] replicas = this.replicas;
+        final List<InvocationDispatcher> list = new ArrayList<InvocationDispatcher>(replicas.length);
+        for (Replica replica : replicas) {
+            list.add(replica.dispatcher);
+        }
+        return list;
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
+        final Replica replica = select(replicas);
+        if (replica == null) {
+            throw new InvocationException(new IllegalStateException("No dispatchers available for " + invocation.getMethodIdentifier()));
+        }
+        replica.inFlight.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            return replica.dispatcher.dispatch(invocation);
+        } finally {
+            replica.recordLatency(System.nanoTime() - start);
+            replica.inFlight.decrementAndGet();
+        }
+    }
+
+    private static Replica select(final Replica[] replicas) {
+        final int length = replicas.length;
+        switch (length) {
+            case 0: return null;
+            case 1: return replicas[0];
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(length);
+        int second = random.nextInt(length - 1);
+        if (second >= first) {
+            second++;
+        }
+        final Replica a = replicas[first];
+        final Replica b = replicas[second];
+        // a replica with no completed invocation yet is assumed to be as fast as the average
+        final double fallback = a.latency == 0.0 || b.latency == 0.0 ? meanLatency(replicas) : 0.0;
+        return a.load(fallback) <= b.load(fallback) ? a : b;
+    }
+
+    private static double meanLatency(final Replica[] replicas) {
+        double sum = 0.0;
+        int count = 0;
+        for (Replica replica : replicas) {
+            final double latency = replica.latency;
+            if (latency != 0.0) {
+                sum += latency;
+                count++;
+            }
+        }
+        return count == 0 ? 1.0 : sum / count;
+    }
+
+    public String toString() {
+        return "load balancing dispatcher to " + getDispatchers();
+    }
+
+    private static final class Replica {
+        private final InvocationDispatcher dispatcher;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // updated without synchronization; a lost sample merely delays convergence
+        private volatile double latency;
+
+        Replica(final InvocationDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        double load(final double fallback) {
+            final double latency = this.latency;
+            return (latency == 0.0 ? fallback : latency) * (inFlight.get() + 1);
+        }
+
+        void recordLatency(final long sample) {
+            final double latency = this.latency;
+            this.latency = latency == 0.0 ? sample : latency + LATENCY_DECAY * (sample - latency);
+        }
+    }
+}
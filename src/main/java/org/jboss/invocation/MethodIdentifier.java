@@ -23,10 +23,19 @@
 package org.jboss.invocation;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.jboss.marshalling.FieldSetter;
 
 /**
@@ -38,51 +47,203 @@ public final class MethodIdentifier implements Serializable {
 
     private static final long serialVersionUID = -4303462176794600579L;
 
+    private static final FieldSetter nameSetter = FieldSetter.get(MethodIdentifier.class, "name");
+    private static final FieldSetter descriptorSetter = FieldSetter.get(MethodIdentifier.class, "descriptor");
+    private static final FieldSetter parameterTypesSetter = FieldSetter.get(MethodIdentifier.class, "parameterTypes");
     private static final FieldSetter hashCodeSetter = FieldSetter.get(MethodIdentifier.class, "hashCode");
 
+    /**
+     * The method name.
+     *
+     * @serial
+     */
     private final String name;
-    private final String[] parameterTypes;
+    /**
+     * The JVM parameter descriptor, for example {@code (I[JLjava/lang/String;)}.
+     *
+     * @serial
+     */
+    private final String descriptor;
+    private final transient String[] parameterTypes;
     private final transient int hashCode;
+    private transient volatile long fingerprint;
     private static final String[] NO_STRINGS = new String[0];
 
-    private MethodIdentifier(final String name, final String... parameterTypes) {
+    private static final Map<String, Class<?>> PRIMITIVE_TYPES;
+    private static final Map<Character, String> PRIMITIVE_NAMES;
+
+    static {
+        final Map<String, Class<?>> primitiveTypes = new HashMap<String, Class<?>>();
+        final Map<Character, String> primitiveNames = new HashMap<Character, String>();
+        for (Class<?> type : new Class<?>[] { boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class }) {
+            primitiveTypes.put(type.getName(), type);
+            primitiveNames.put(Character.valueOf(descriptorOf(type).charAt(0)), type.getName());
+        }
+        PRIMITIVE_TYPES = primitiveTypes;
+        PRIMITIVE_NAMES = primitiveNames;
+    }
+
+    /**
+     * Parameter type names, shared between all identifiers with the same descriptor.  Only descriptors of identifiers
+     * created from local classes or methods are added, so the map is bounded by the code loaded; descriptors read from
+     * a stream are only looked up.
+     */
+    private static final ConcurrentMap<String, String[]> parameterTypesByDescriptor = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * Resolved public methods, per class.  Class values are held by the class itself, so a cache does not keep its
+     * class loader reachable.
+     */
+    private static final ClassValue<ConcurrentMap<MethodIdentifier, Method>> publicMethods = new ClassValue<ConcurrentMap<MethodIdentifier, Method>>() {
+        protected ConcurrentMap<MethodIdentifier, Method> computeValue(final Class<?> type) {
+            return new ConcurrentHashMap<MethodIdentifier, Method>();
+        }
+    };
+
+    /**
+     * Identifiers of methods, per declaring class, so that a proxy call does not build a descriptor each time.
+     */
+    private static final ClassValue<ConcurrentMap<Method, MethodIdentifier>> methodIdentifiers = new ClassValue<ConcurrentMap<Method, MethodIdentifier>>() {
+        protected ConcurrentMap<Method, MethodIdentifier> computeValue(final Class<?> type) {
+            return new ConcurrentHashMap<Method, MethodIdentifier>();
+        }
+    };
+
+    /**
+     * Public methods by fingerprint, per class.  A fingerprint shared by two different methods of a class maps to
+     * {@code null}.
+     */
+    private static final ClassValue<Map<Long, MethodIdentifier>> fingerprints = new ClassValue<Map<Long, MethodIdentifier>>() {
+        protected Map<Long, MethodIdentifier> computeValue(final Class<?> type) {
+            final Map<Long, MethodIdentifier> map = new HashMap<Long, MethodIdentifier>();
+            for (Method method : type.getMethods()) {
+                final MethodIdentifier identifier = getIdentifierForMethod(method);
+                final Long fingerprint = Long.valueOf(identifier.getFingerprint());
+                if (map.containsKey(fingerprint)) {
+                    if (! identifier.equals(map.get(fingerprint))) {
+                        map.put(fingerprint, null);
+                    }
+                } else {
+                    map.put(fingerprint, identifier);
+                }
+            }
+            return map;
+        }
+    };
+
+    private MethodIdentifier(final String name, final Class<?>... parameterTypes) {
         if (name == null) {
             throw new IllegalArgumentException("name is null");
         }
         if (parameterTypes == null) {
             throw new IllegalArgumentException("parameterTypes is null");
         }
+        final StringBuilder b = new StringBuilder();
+        b.append('(');
+        for (Class<?> type : parameterTypes) {
+            if (type == null) {
+                throw new IllegalArgumentException("parameterTypes contains null");
+            }
+            b.append(descriptorOf(type));
+        }
+        final String descriptor = b.append(')').toString();
         this.name = name;
-        this.parameterTypes = parameterTypes == null || parameterTypes.length == 0 ? NO_STRINGS : parameterTypes.clone();
-        hashCode = calculateHash(name, parameterTypes);
+        this.descriptor = descriptor;
+        this.parameterTypes = parameterTypesOf(descriptor);
+        hashCode = calculateHash(name, descriptor);
     }
 
     private MethodIdentifier(final Method method) {
-        final String name = (this.name = method.getName());
-        final Class<?>[] methodParameterTypes = method.getParameterTypes();
-        final String[] parameterTypes = methodParameterTypes.length == 0 ? NO_STRINGS : namesOf(methodParameterTypes);
-        hashCode = calculateHash(name, parameterTypes);
-        this.parameterTypes = parameterTypes;
+        this(method.getName(), method.getParameterTypes());
     }
 
-    private static String[] namesOf(final Class<?>[] types) {
-        final String[] strings = new String[types.length];
-        for (int i = 0, typesLength = types.length; i < typesLength; i++) {
-            strings[i] = types[i].getName();
+    private static String descriptorOf(final Class<?> type) {
+        if (type == boolean.class) {
+            return "Z";
+        } else if (type == byte.class) {
+            return "B";
+        } else if (type == char.class) {
+            return "C";
+        } else if (type == short.class) {
+            return "S";
+        } else if (type == int.class) {
+            return "I";
+        } else if (type == long.class) {
+            return "J";
+        } else if (type == float.class) {
+            return "F";
+        } else if (type == double.class) {
+            return "D";
+        } else if (type == void.class) {
+            throw new IllegalArgumentException("void is not a parameter type");
+        } else if (type.isArray()) {
+            return type.getName().replace('.', '/');
+        } else {
+            return "L" + type.getName().replace('.', '/') + ";";
+        }
+    }
+
+    private static String[] parameterTypesOf(final String descriptor) {
+        final String[] parameterTypes = parameterTypesByDescriptor.get(descriptor);
+        if (parameterTypes != null) {
+            return parameterTypes;
+        }
+        final String[] parsed = parseDescriptor(descriptor);
+        final String[] appearing = parameterTypesByDescriptor.putIfAbsent(descriptor, parsed);
+        return appearing != null ? appearing : parsed;
+    }
+
+    private static String[] parseDescriptor(final String descriptor) {
+        final int length = descriptor.length();
+        if (length < 2 || descriptor.charAt(0) != '(' || descriptor.charAt(length - 1) != ')') {
+            throw new IllegalArgumentException("Invalid descriptor " + descriptor);
+        }
+        if (length == 2) {
+            return NO_STRINGS;
+        }
+        final List<String> names = new ArrayList<String>();
+        int i = 1;
+        while (i < length - 1) {
+            final int start = i;
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            final char c = descriptor.charAt(i);
+            if (c == 'L') {
+                final int nameStart = i + 1;
+                i = descriptor.indexOf(';', nameStart);
+                if (i == -1 || i == nameStart) {
+                    throw new IllegalArgumentException("Invalid descriptor " + descriptor);
+                }
+            } else if (! PRIMITIVE_NAMES.containsKey(Character.valueOf(c))) {
+                throw new IllegalArgumentException("Invalid descriptor " + descriptor);
+            }
+            i++;
+            if (start + 1 == i) {
+                names.add(PRIMITIVE_NAMES.get(Character.valueOf(c)));
+            } else if (descriptor.charAt(start) == '[') {
+                names.add(descriptor.substring(start, i).replace('/', '.'));
+            } else {
+                names.add(descriptor.substring(start + 1, i - 1).replace('/', '.'));
+            }
         }
-        return strings;
+        if (i != length - 1) {
+            throw new IllegalArgumentException("Invalid descriptor " + descriptor);
+        }
+        return names.toArray(new String[names.size()]);
     }
 
     private static Class<?>[] typesOf(final String[] names, final ClassLoader classLoader) throws ClassNotFoundException {
         final Class<?>[] types = new Class<?>[names.length];
         for (int i = 0, namesLength = names.length; i < namesLength; i++) {
-            types[i] = Class.forName(names[i], false, classLoader);
+            final Class<?> primitiveType = PRIMITIVE_TYPES.get(names[i]);
+            types[i] = primitiveType != null ? primitiveType : Class.forName(names[i], false, classLoader);
         }
         return types;
     }
 
-    private static int calculateHash(final String name, final String[] parameterTypes) {
-        return name.hashCode() * 7 + Arrays.hashCode(parameterTypes);
+    private static int calculateHash(final String name, final String descriptor) {
+        return name.hashCode() * 7 + descriptor.hashCode();
     }
 
     /**
@@ -104,6 +265,25 @@ public final class MethodIdentifier implements Serializable {
         return parameterTypes == NO_STRINGS ? parameterTypes : parameterTypes.clone();
     }
 
+    /**
+     * Get the number of parameters.
+     *
+     * @return the parameter count
+     */
+    int getParameterCount() {
+        return parameterTypes.length;
+    }
+
+    /**
+     * Get the name of a single parameter type without copying the parameter type array.
+     *
+     * @param index the parameter index
+     * @return the parameter type name
+     */
+    String getParameterType(final int index) {
+        return parameterTypes[index];
+    }
+
     /**
      * Determine whether this object is equal to another.
      *
@@ -121,7 +301,7 @@ public final class MethodIdentifier implements Serializable {
      * @return {@code true} if they are equal, {@code false} otherwise
      */
     public boolean equals(MethodIdentifier other) {
-        return this == other || other != null && name.equals(other.name) && Arrays.equals(parameterTypes, other.parameterTypes);
+        return this == other || other != null && hashCode == other.hashCode && name.equals(other.name) && descriptor.equals(other.descriptor);
     }
 
     /**
@@ -129,8 +309,8 @@ public final class MethodIdentifier implements Serializable {
      * <pre>
      *    n * 7 + a
      * </pre>
-     * where <em>n</em> is the method name's hash code and <em>a</em> is the result of calling
-     * {@link Arrays#hashCode(Object[])} on the parameter type name list.
+     * where <em>n</em> is the method name's hash code and <em>a</em> is the hash code of the JVM parameter descriptor,
+     * for example {@code (I[JLjava/lang/String;)}.
      *
      * @return the hash code
      */
@@ -139,7 +319,33 @@ public final class MethodIdentifier implements Serializable {
     }
 
     /**
-     * Look up a public method matching this method identifier using reflection.
+     * Get the fingerprint of this method identifier.  The fingerprint is the first eight bytes, in big-endian order, of
+     * the SHA-1 digest of the UTF-8 encoding of the method name followed by the parameter descriptor (for example
+     * {@code add(IJ)}), so it is the same on every JVM.
+     *
+     * @return the fingerprint
+     * @see #getIdentifierForFingerprint(Class, long)
+     */
+    public long getFingerprint() {
+        long fingerprint = this.fingerprint;
+        if (fingerprint == 0L) {
+            final byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1").digest((name + descriptor).getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+            for (int i = 0; i < 8; i++) {
+                fingerprint = fingerprint << 8 | digest[i] & 0xffL;
+            }
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Look up a public method matching this method identifier using reflection.  Methods are cached per class once
+     * found, so the returned method is shared and its accessibility should not be changed.
      *
      * @param clazz the class to search
      * @return the method
@@ -148,7 +354,16 @@ public final class MethodIdentifier implements Serializable {
      *      class loader
      */
     public Method getPublicMethod(final Class<?> clazz) throws NoSuchMethodException, ClassNotFoundException {
-        return clazz.getMethod(name, typesOf(parameterTypes, clazz.getClassLoader()));
+        final ConcurrentMap<MethodIdentifier, Method> methods = publicMethods.get(clazz);
+        Method method = methods.get(this);
+        if (method == null) {
+            method = clazz.getMethod(name, typesOf(parameterTypes, clazz.getClassLoader()));
+            final Method appearing = methods.putIfAbsent(this, method);
+            if (appearing != null) {
+                method = appearing;
+            }
+        }
+        return method;
     }
 
     /**
@@ -159,25 +374,97 @@ public final class MethodIdentifier implements Serializable {
     public String toString() {
         final StringBuilder b = new StringBuilder();
         b.append("Method ").append(name).append('(');
-        for (String type : parameterTypes) {
-            b.append(type);
+        final String[] parameterTypes = this.parameterTypes;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                b.append(", ");
+            }
+            b.append(parameterTypes[i]);
         }
         return b.append(')').toString();
     }
 
     private void readObject(final ObjectInputStream ois) throws ClassNotFoundException, IOException {
-        ois.defaultReadObject();
-        hashCodeSetter.setInt(this, calculateHash(name, parameterTypes));
+        final ObjectInputStream.GetField fields = ois.readFields();
+        final String name = (String) fields.get("name", null);
+        if (name == null) {
+            throw new InvalidObjectException("name is null");
+        }
+        String descriptor = (String) fields.get("descriptor", null);
+        try {
+            if (descriptor == null) {
+                // the serial form before descriptors held the parameter type names instead
+                final Object legacyParameterTypes = fields.defaulted("parameterTypes") ? null : fields.get("parameterTypes", null);
+                if (! (legacyParameterTypes instanceof String[])) {
+                    throw new InvalidObjectException("descriptor is null");
+                }
+                descriptor = descriptorOf((String[]) legacyParameterTypes);
+            }
+            // never cache or intern a descriptor from the stream, so a peer cannot grow them without limit
+            final String[] parameterTypes = parameterTypesByDescriptor.get(descriptor);
+            parameterTypesSetter.set(this, parameterTypes != null ? parameterTypes : parseDescriptor(descriptor));
+        } catch (IllegalArgumentException e) {
+            final InvalidObjectException ioe = new InvalidObjectException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        nameSetter.set(this, name);
+        descriptorSetter.set(this, descriptor);
+        hashCodeSetter.setInt(this, calculateHash(name, descriptor));
+    }
+
+    private static String descriptorOf(final String[] names) {
+        final StringBuilder b = new StringBuilder();
+        b.append('(');
+        for (String name : names) {
+            if (name == null) {
+                throw new IllegalArgumentException("parameterTypes contains null");
+            }
+            final Class<?> primitiveType = PRIMITIVE_TYPES.get(name);
+            if (primitiveType != null) {
+                b.append(descriptorOf(primitiveType));
+            } else if (name.startsWith("[")) {
+                b.append(name.replace('.', '/'));
+            } else {
+                b.append('L').append(name.replace('.', '/')).append(';');
+            }
+        }
+        return b.append(')').toString();
     }
 
     /**
-     * Get an identifier for the given reflection method.
+     * Get an identifier for the given reflection method.  Identifiers are cached per method.
      *
      * @param method the method
      * @return the identifier
      */
     public static MethodIdentifier getIdentifierForMethod(final Method method) {
-        return new MethodIdentifier(method);
+        final ConcurrentMap<Method, MethodIdentifier> identifiers = methodIdentifiers.get(method.getDeclaringClass());
+        MethodIdentifier identifier = identifiers.get(method);
+        if (identifier == null) {
+            identifier = new MethodIdentifier(method);
+            final MethodIdentifier appearing = identifiers.putIfAbsent(method, identifier);
+            if (appearing != null) {
+                identifier = appearing;
+            }
+        }
+        return identifier;
+    }
+
+    /**
+     * Get the identifier of the public method of the given class with the given fingerprint.  The fingerprints of a
+     * class's public methods are computed once per class.
+     *
+     * @param clazz the class to search
+     * @param fingerprint the method fingerprint
+     * @return the identifier, or {@code null} if no public method or more than one public method has the fingerprint
+     * @see #getFingerprint()
+     */
+    public static MethodIdentifier getIdentifierForFingerprint(final Class<?> clazz, final long fingerprint) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("clazz is null");
+        }
+        return fingerprints.get(clazz).get(Long.valueOf(fingerprint));
     }
 
     /**
@@ -188,7 +475,7 @@ public final class MethodIdentifier implements Serializable {
      * @return the identifier
      */
     public static MethodIdentifier getIdentifier(final String name, final Class<?>... parameterTypes) {
-        return new MethodIdentifier(name, namesOf(parameterTypes));
+        return new MethodIdentifier(name, parameterTypes);
     }
 
     /**
@@ -27,17 +27,20 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 /**
  * An {@code InvocationDispatcher} which executes the invocation method on a target object.
  *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
+@NonRetaining
 public final class ObjectInvocationDispatcher implements Serializable, InvocationDispatcher {
 
     private static final long serialVersionUID = 149324822317622879L;
 
     private final Object target;
+    private final boolean stacklessExceptions;
 
     /**
      * Construct a new instance.
@@ -45,22 +48,59 @@ public final class ObjectInvocationDispatcher implements Serializable, Invocatio
      * @param target the target for invocations
      */
     public ObjectInvocationDispatcher(final Object target) {
+        this(target, false);
+    }
+
+    /**
+     * Construct a new instance.  If {@code stacklessExceptions} is {@code true}, the {@code InvocationException}s
+     * which wrap exceptions thrown by the target are constructed without a stack trace.  This makes exceptions which
+     * are part of the normal flow of a target API considerably cheaper, at the cost of not recording where the wrapper
+     * was created; the stack trace of the cause is unaffected.
+     *
+     * @param target the target for invocations
+     * @param stacklessExceptions {@code true} to omit stack traces from wrapper exceptions
+     */
+    public ObjectInvocationDispatcher(final Object target, final boolean stacklessExceptions) {
         this.target = target;
+        this.stacklessExceptions = stacklessExceptions;
     }
 
     /** {@inheritDoc} */
     public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
+        final InvocationEvents.ObjectDispatchEvent event = new InvocationEvents.ObjectDispatchEvent();
+        event.begin();
         try {
-            return new InvocationReply(invocation.getMethodIdentifier().getPublicMethod(target.getClass()).invoke(target, invocation.getArgs()));
+            final Method method = invocation.getMethodIdentifier().getPublicMethod(target.getClass());
+            final Object result = method.invoke(target, invocation.getArgs());
+            final InvocationFrames.Frame frame = invocation.getFrame();
+            if (frame != null) {
+                return frame.getReply(result);
+            }
+            // shared replies for void, null and boolean results; processors attach properties with withProperties
+            return method.getReturnType() == void.class ? InvocationReply.VOID : InvocationReply.valueOf(result);
         } catch (IllegalAccessException e) {
-            throw new InvocationException(new IllegalAccessError(e.getMessage()));
+            throw wrap(new IllegalAccessError(e.getMessage()));
         } catch (InvocationTargetException e) {
-            throw new InvocationException(e.getCause());
+            throw wrap(e.getCause());
         } catch (ClassNotFoundException e) {
-            throw new InvocationException(e.getCause());
+            throw wrap(e);
         } catch (NoSuchMethodException e) {
-            throw new InvocationException(e.getCause());
+            throw wrap(e);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.setInvocation(invocation);
+                event.targetClass = target.getClass();
+                event.commit();
+            }
+        }
+    }
+
+    private InvocationException wrap(final Throwable cause) {
+        if (stacklessExceptions) {
+            return new InvocationException(cause == null ? null : cause.toString(), cause, false);
         }
+        return new InvocationException(cause);
     }
 
     private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
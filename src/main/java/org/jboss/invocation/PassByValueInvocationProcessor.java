@@ -22,12 +22,15 @@
 
 package org.jboss.invocation;
 
+import java.io.IOException;
+
 /**
  * An invocation processor which passes the invocation by value to a target class loader.  Invocations will be
  * cloned to the target class loader; replies will be cloned to the current thread context class loader.
  *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
+@NonRetaining
 public final class PassByValueInvocationProcessor implements InvocationProcessor {
     private final ClassLoader targetClassLoader;
 
@@ -44,9 +47,9 @@ public final class PassByValueInvocationProcessor implements InvocationProcessor
     public InvocationReply processInvocation(final InvocationProcessorContext context, final Invocation invocation) throws InvocationException, IllegalArgumentException {
         try {
             final ClassLoader originalLoader = Thread.currentThread().getContextClassLoader();
-            final InvocationReply reply = context.invokeNext(invocation.cloneTo(targetClassLoader));
+            final InvocationReply reply = context.invokeNext(cloneInvocation(invocation));
             try {
-                return ((InvocationReply) reply).cloneTo(originalLoader);
+                return cloneReply(invocation, reply, originalLoader);
             } catch (Exception e) {
                 throw new InvocationException("Cannot pass result by value", e);
             }
@@ -54,4 +57,33 @@ public final class PassByValueInvocationProcessor implements InvocationProcessor
             throw new InvocationException("Pass-by-value failed", e);
         }
     }
+
+    private Invocation cloneInvocation(final Invocation invocation) throws ClassNotFoundException, IOException {
+        final InvocationEvents.CloneEvent event = new InvocationEvents.CloneEvent();
+        event.begin();
+        try {
+            return invocation.cloneTo(targetClassLoader);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.setInvocation(invocation);
+                event.commit();
+            }
+        }
+    }
+
+    private static InvocationReply cloneReply(final Invocation invocation, final InvocationReply reply, final ClassLoader classLoader) throws ClassNotFoundException, IOException {
+        final InvocationEvents.CloneEvent event = new InvocationEvents.CloneEvent();
+        event.begin();
+        try {
+            return reply.cloneTo(classLoader);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.setInvocation(invocation);
+                event.reply = true;
+                event.commit();
+            }
+        }
+    }
 }
@@ -0,0 +1,398 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of serialized invocation payloads.  Compression is enabled by setting the system property
+ * {@code org.jboss.invocation.compression.threshold} to the minimum serialized size, in bytes, of a payload worth
+ * compressing.  Each payload is serialized only once:
+ * <ul>
+ * <li>a payload which is clearly smaller than the threshold, judging by a cheap estimate of strings, boxed primitives
+ * and arrays of them, is written directly to the enclosing stream, as is every payload while recent payloads have not
+ * compressed well, apart from an occasional probe;</li>
+ * <li>otherwise the payload is serialized into a separate buffer, and is deflated if it is at least the threshold
+ * size and its deflated form saves at least 10%;</li>
+ * <li>a buffered payload which is not deflated is written as it was buffered.</li>
+ * </ul>
+ * <p>
+ * The classes used by a buffered payload are written to the enclosing stream ahead of it, so they are resolved and
+ * filtered by the enclosing stream just as if the payload had been written directly; the enclosing stream's
+ * {@link ObjectInputFilter} also applies to the objects of the payload and to the payload's length.  Payloads which use
+ * proxy classes, or which are larger than a reader will buffer, are written directly after all.
+ */
+final class PayloadCompression {
+
+    private static final int THRESHOLD = getThreshold();
+    private static final double POOR_RATIO = 0.9;
+    private static final double RATIO_DECAY = 0.1;
+    private static final int PROBE_INTERVAL = 32;
+    // larger payloads are written directly, so a reader never has to allocate more than this for one
+    private static final int MAX_PAYLOAD = 64 << 20;
+    private static final int MAX_CLASSES = 4096;
+
+    private static final byte DIRECT = 0;
+    private static final byte DEFLATED = 1;
+    private static final byte RAW = 2;
+
+    // updated without synchronization; the ratio is only a heuristic
+    private static volatile double observedRatio = 0.5;
+    private static final AtomicInteger skipped = new AtomicInteger();
+
+    private PayloadCompression() {
+    }
+
+    private static int getThreshold() {
+        try {
+            return Math.max(0, Integer.getInteger("org.jboss.invocation.compression.threshold", 0).intValue());
+        } catch (SecurityException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Determine whether payloads should be written with {@link #writePayload(ObjectOutputStream, Object)}.
+     *
+     * @return {@code true} if payload compression is enabled
+     */
+    static boolean isEnabled() {
+        return THRESHOLD > 0;
+    }
+
+    static void writePayload(final ObjectOutputStream oos, final Object value) throws IOException {
+        final long estimate = estimateSize(value, 0);
+        if (estimate >= 0L && estimate < THRESHOLD || ! shouldTry()) {
+            oos.writeByte(DIRECT);
+            oos.writeObject(value);
+            return;
+        }
+        final PayloadBuffer buffer = new PayloadBuffer();
+        final PayloadOutputStream payloadStream = new PayloadOutputStream(buffer);
+        try {
+            payloadStream.writeObject(value);
+            payloadStream.close();
+        } catch (PayloadTooLargeException e) {
+            // only the first MAX_PAYLOAD bytes were serialized before giving up
+            oos.writeByte(DIRECT);
+            oos.writeObject(value);
+            return;
+        }
+        if (payloadStream.proxies) {
+            oos.writeByte(DIRECT);
+            oos.writeObject(value);
+            return;
+        }
+        if (buffer.size() >= THRESHOLD) {
+            final byte[] deflated = deflate(buffer.array(), buffer.size());
+            final double ratio = deflated == null ? 1.0 : (double) deflated.length / (double) buffer.size();
+            observedRatio += RATIO_DECAY * (ratio - observedRatio);
+            if (ratio < POOR_RATIO) {
+                oos.writeByte(DEFLATED);
+                writeClasses(oos, payloadStream.classes);
+                oos.writeInt(buffer.size());
+                oos.writeInt(deflated.length);
+                oos.write(deflated);
+                return;
+            }
+        }
+        // already serialized, so send the buffered form rather than serializing the value again
+        oos.writeByte(RAW);
+        writeClasses(oos, payloadStream.classes);
+        oos.writeInt(buffer.size());
+        buffer.writeTo(oos);
+    }
+
+    private static boolean shouldTry() {
+        return observedRatio < POOR_RATIO || skipped.incrementAndGet() % PROBE_INTERVAL == 0;
+    }
+
+    /**
+     * Cheaply estimate the serialized size of a value, if it is built only from types whose size is easily known.
+     *
+     * @param value the value
+     * @param depth the array nesting depth
+     * @return an upper bound on the serialized size, or {@code -1} if it is not known
+     */
+    private static long estimateSize(final Object value, final int depth) {
+        // generous allowance for a class descriptor and object header
+        final long overhead = 96L;
+        if (value == null) {
+            return 1L;
+        } else if (value instanceof String) {
+            // modified UTF-8 needs at most three bytes per char
+            return 3L * ((String) value).length() + overhead;
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return overhead;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length + overhead;
+        } else if (value instanceof int[]) {
+            return 4L * ((int[]) value).length + overhead;
+        } else if (value instanceof long[]) {
+            return 8L * ((long[]) value).length + overhead;
+        } else if (value instanceof Object[] && depth < 2) {
+            final Object[] array = (Object[]) value;
+            long size = overhead;
+            for (Object element : array) {
+                final long elementSize = estimateSize(element, depth + 1);
+                if (elementSize < 0L) {
+                    return -1L;
+                }
+                size += elementSize;
+                if (size >= THRESHOLD) {
+                    return size;
+                }
+            }
+            return size;
+        }
+        return -1L;
+    }
+
+    private static byte[] deflate(final byte[] raw, final int rawLength) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw, 0, rawLength);
+            deflater.finish();
+            final byte[] buffer = new byte[rawLength];
+            int length = 0;
+            while (! deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return deflater.finished() ? trim(buffer, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] trim(final byte[] buffer, final int length) {
+        final byte[] trimmed = new byte[length];
+        System.arraycopy(buffer, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static void writeClasses(final ObjectOutputStream oos, final Map<String, Class<?>> classes) throws IOException {
+        oos.writeInt(classes.size());
+        for (Class<?> clazz : classes.values()) {
+            oos.writeObject(clazz);
+        }
+    }
+
+    static Object readPayload(final ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        final byte mode = ois.readByte();
+        if (mode == DIRECT) {
+            return ois.readObject();
+        } else if (mode != DEFLATED && mode != RAW) {
+            throw new InvalidObjectException("Unknown payload mode " + mode);
+        }
+        final int classCount = ois.readInt();
+        if (classCount < 0 || classCount > MAX_CLASSES) {
+            throw new InvalidObjectException("Invalid payload class count " + classCount);
+        }
+        final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+        for (int i = 0; i < classCount; i++) {
+            final Object clazz = ois.readObject();
+            if (! (clazz instanceof Class)) {
+                throw new InvalidObjectException("Payload class is not a Class");
+            }
+            classes.put(((Class<?>) clazz).getName(), (Class<?>) clazz);
+        }
+        final int rawLength = ois.readInt();
+        final int deflatedLength = mode == DEFLATED ? ois.readInt() : rawLength;
+        if (rawLength < 0 || rawLength > MAX_PAYLOAD || deflatedLength < 0 || deflatedLength > rawLength) {
+            throw new InvalidObjectException("Invalid payload length");
+        }
+        final ObjectInputFilter filter = ois.getObjectInputFilter();
+        if (filter != null && filter.checkInput(new PayloadFilterInfo(rawLength)) == ObjectInputFilter.Status.REJECTED) {
+            throw new InvalidObjectException("Payload length " + rawLength + " rejected by filter");
+        }
+        final byte[] raw = new byte[rawLength];
+        if (mode == RAW) {
+            ois.readFully(raw);
+        } else {
+            final byte[] deflated = new byte[deflatedLength];
+            ois.readFully(deflated);
+            inflate(deflated, raw);
+        }
+        final ObjectInputStream payloadStream = new PayloadInputStream(new ByteArrayInputStream(raw), classes);
+        payloadStream.setObjectInputFilter(filter);
+        try {
+            return payloadStream.readObject();
+        } finally {
+            payloadStream.close();
+        }
+    }
+
+    private static void inflate(final byte[] deflated, final byte[] raw) throws InvalidObjectException {
+        final int rawLength = raw.length;
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int length = 0;
+            while (length < rawLength && ! inflater.finished()) {
+                final int res = inflater.inflate(raw, length, rawLength - length);
+                if (res == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += res;
+            }
+            if (length != rawLength) {
+                throw new InvalidObjectException("Truncated compressed payload");
+            }
+        } catch (DataFormatException e) {
+            final InvalidObjectException ioe = new InvalidObjectException("Corrupt compressed payload");
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A payload buffer which exposes its array and refuses to grow beyond the largest payload a reader accepts.
+     */
+    private static final class PayloadBuffer extends ByteArrayOutputStream {
+
+        PayloadBuffer() {
+            super(256);
+        }
+
+        public void write(final int b) {
+            if (count + 1 > MAX_PAYLOAD) {
+                throw new PayloadTooLargeException();
+            }
+            super.write(b);
+        }
+
+        public void write(final byte[] b, final int off, final int len) {
+            if (len > MAX_PAYLOAD - count) {
+                throw new PayloadTooLargeException();
+            }
+            super.write(b, off, len);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private static final class PayloadTooLargeException extends RuntimeException {
+
+        private static final long serialVersionUID = 3958618223530264906L;
+
+        PayloadTooLargeException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Records the classes of a payload so that they can be written to the enclosing stream.
+     */
+    private static final class PayloadOutputStream extends ObjectOutputStream {
+        final Map<String, Class<?>> classes = new LinkedHashMap<String, Class<?>>();
+        // proxy classes cannot be resolved from the enclosing stream's classes, so such payloads are written directly
+        boolean proxies;
+
+        PayloadOutputStream(final OutputStream out) throws IOException {
+            super(out);
+        }
+
+        protected void annotateClass(final Class<?> cl) {
+            classes.put(cl.getName(), cl);
+        }
+
+        protected void annotateProxyClass(final Class<?> cl) {
+            proxies = true;
+        }
+    }
+
+    /**
+     * Resolves the classes of a payload from those read from the enclosing stream.
+     */
+    private static final class PayloadInputStream extends ObjectInputStream {
+        private final Map<String, Class<?>> classes;
+
+        PayloadInputStream(final InputStream in, final Map<String, Class<?>> classes) throws IOException {
+            super(in);
+            this.classes = classes;
+        }
+
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            final Class<?> clazz = classes.get(desc.getName());
+            if (clazz == null) {
+                throw new InvalidObjectException("Class " + desc.getName() + " was not declared by the payload");
+            }
+            return clazz;
+        }
+
+        protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException {
+            throw new InvalidObjectException("Proxy classes are not permitted in a compressed payload");
+        }
+    }
+
+    /**
+     * Describes a payload buffer to the enclosing stream's filter as a byte array of the payload's length.
+     */
+    private static final class PayloadFilterInfo implements ObjectInputFilter.FilterInfo {
+        private final int length;
+
+        PayloadFilterInfo(final int length) {
+            this.length = length;
+        }
+
+        public Class<?> serialClass() {
+            return byte[].class;
+        }
+
+        public long arrayLength() {
+            return length;
+        }
+
+        public long depth() {
+            return 1L;
+        }
+
+        public long references() {
+            return 0L;
+        }
+
+        public long streamBytes() {
+            return 0L;
+        }
+    }
+}
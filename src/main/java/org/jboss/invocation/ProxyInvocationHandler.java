@@ -29,6 +29,7 @@ import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import org.jboss.marshalling.FieldSetter;
 
 /**
  * A {@link Proxy} {@code InvocationHandler} which delegates invocations to an {@code InvocationDispatcher}.
@@ -45,6 +46,18 @@ public final class ProxyInvocationHandler implements InvocationHandler, Serializ
      * @serial
      */
     private final InvocationDispatcher dispatcher;
+    /**
+     * {@code true} if invocation frames should be used when possible.
+     *
+     * @serial
+     */
+    private final boolean useFrames;
+    /**
+     * {@code true} if invocation frames are used.
+     */
+    private final transient boolean framed;
+
+    private static final FieldSetter framedSetter = FieldSetter.get(ProxyInvocationHandler.class, "framed");
 
     /**
      * Construct a new instance.
@@ -52,7 +65,23 @@ public final class ProxyInvocationHandler implements InvocationHandler, Serializ
      * @param dispatcher the dispatcher to send invocations to
      */
     public ProxyInvocationHandler(final InvocationDispatcher dispatcher) {
+        this(dispatcher, false);
+    }
+
+    /**
+     * Construct a new instance.  If {@code useFrames} is {@code true}, invocations and replies are taken from a
+     * reusable per-thread frame and recycled once the invocation returns, so that synchronous in-VM invocations do
+     * not allocate them.  Frames are only used if the dispatcher is an {@link ObjectInvocationDispatcher}, or a
+     * processor chain built solely from dispatchers and processors which are annotated {@link NonRetaining};
+     * otherwise this option is ignored.
+     *
+     * @param dispatcher the dispatcher to send invocations to
+     * @param useFrames {@code true} to recycle invocations and replies when possible
+     */
+    public ProxyInvocationHandler(final InvocationDispatcher dispatcher, final boolean useFrames) {
         this.dispatcher = dispatcher;
+        this.useFrames = useFrames;
+        framed = useFrames && InvocationFrames.isNonRetaining(dispatcher);
     }
 
     /**
@@ -72,8 +101,17 @@ public final class ProxyInvocationHandler implements InvocationHandler, Serializ
             return Integer.valueOf(System.identityHashCode(proxy));
         } else if (id.equals(MethodIdentifier.TO_STRING)) {
             return "Proxy via " + dispatcher;
+        } else if (framed) {
+            final InvocationFrames.Frame frame = InvocationFrames.enter();
+            try {
+                return dispatcher.dispatch(frame.getInvocation(method.getDeclaringClass(), id, args)).getReply();
+            } catch (InvocationException e) {
+                throw e.getCause();
+            } finally {
+                frame.exit();
+            }
         } else try {
-            return dispatcher.dispatch(new Invocation(method.getDeclaringClass(), id, (Object[]) args));
+            return dispatcher.dispatch(new Invocation(method.getDeclaringClass(), id, (Object[]) args)).getReply();
         } catch (InvocationException e) {
             throw e.getCause();
         }
@@ -87,5 +125,6 @@ public final class ProxyInvocationHandler implements InvocationHandler, Serializ
                 throw new InvalidObjectException("Dispatcher does not have invoke permission");
             }
         }
+        framedSetter.setBoolean(this, useFrames && InvocationFrames.isNonRetaining(dispatcher));
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An invocation dispatcher which sends each invocation to all of a set of downstream dispatchers in parallel, and
+ * combines their replies with an {@link InvocationReplyReducer}.  The latency of an invocation is thus that of the
+ * slowest dispatcher waited for, rather than the sum over all of them.
+ * <p>
+ * Replies are gathered until the required number of successful replies has been received, every dispatcher has
+ * replied or failed, or the timeout elapses, whichever comes first; outstanding attempts are then cancelled and the
+ * replies received so far are reduced.  If no dispatcher has replied successfully, the invocation fails with the first
+ * failure, or with a {@link TimeoutException} cause if nothing failed.  Attempts run on the given executor, which
+ * should be able to run one task per dispatcher for each concurrent caller.
+ * <p>
+ * Stream arguments can only be consumed once, so invocations with stream arguments are rejected unless there is only
+ * one downstream dispatcher.
+ */
+public final class ScatterGatherInvocationDispatcher implements InvocationDispatcher {
+
+    private final Executor executor;
+    private final InvocationReplyReducer reducer;
+    private final int required;
+    private final long timeout;
+    private final InvocationDispatcher[] dispatchers;
+
+    /**
+     * Construct a new instance which waits for every dispatcher.
+     *
+     * @param executor the executor used to run invocation attempts
+     * @param reducer the reducer which combines the replies
+     * @param timeout the time to wait for replies before reducing the partial result
+     * @param unit the unit of {@code timeout}
+     * @param dispatchers the downstream dispatchers
+     */
+    public ScatterGatherInvocationDispatcher(final Executor executor, final InvocationReplyReducer reducer, final long timeout, final TimeUnit unit, final InvocationDispatcher... dispatchers) {
+        this(executor, reducer, dispatchers.length, timeout, unit, Arrays.asList(dispatchers));
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param executor the executor used to run invocation attempts
+     * @param reducer the reducer which combines the replies
+     * @param required the number of successful replies after which the remaining attempts are abandoned
+     * @param timeout the time to wait for replies before reducing the partial result
+     * @param unit the unit of {@code timeout}
+     * @param dispatchers the downstream dispatchers
+     */
+    public ScatterGatherInvocationDispatcher(final Executor executor, final InvocationReplyReducer reducer, final int required, final long timeout, final TimeUnit unit, final Collection<InvocationDispatcher> dispatchers) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        if (reducer == null) {
+            throw new IllegalArgumentException("reducer is null");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout is negative");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null");
+        }
+        if (dispatchers.isEmpty()) {
+            throw new IllegalArgumentException("dispatchers is empty");
+        }
+        if (required < 1 || required > dispatchers.size()) {
+            throw new IllegalArgumentException("required must be between 1 and the number of dispatchers");
+        }
+        this.executor = executor;
+        this.reducer = reducer;
+        this.required = required;
+        this.timeout = unit.toNanos(timeout);
+        this.dispatchers = dispatchers.toArray(new InvocationDispatcher[dispatchers.size()]);
+        for (InvocationDispatcher dispatcher : this.dispatchers) {
+            if (dispatcher == null) {
+                throw new IllegalArgumentException("dispatcher is null");
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
+        final InvocationDispatcher[] dispatchers = this.dispatchers;
+        if (dispatchers.length > 1 && StreamArguments.hasStream(invocation.getArgs())) {
+            throw new InvocationException(new IllegalArgumentException("Cannot scatter an invocation of " + invocation.getMethodIdentifier() + " with stream arguments"));
+        }
+        final CompletionService<InvocationReply> completionService = new ExecutorCompletionService<InvocationReply>(executor);
+        final List<Future<InvocationReply>> attempts = new ArrayList<Future<InvocationReply>>(dispatchers.length);
+        final List<InvocationReply> replies = new ArrayList<InvocationReply>(required);
+        InvocationException problem = null;
+        try {
+            for (InvocationDispatcher dispatcher : dispatchers) {
+                // downstream dispatchers may change an invocation's properties, so each attempt gets its own copy
+                final Invocation copy = new Invocation(invocation.getProperties(), invocation.getDeclaringClass(), invocation.getMethodIdentifier(), invocation.getArgs().clone());
+                attempts.add(completionService.submit(new Attempt(dispatcher, copy)));
+            }
+            final long deadline = System.nanoTime() + timeout;
+            for (int outstanding = dispatchers.length; outstanding > 0 && replies.size() < required; outstanding--) {
+                final Future<InvocationReply> done = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    break;
+                }
+                try {
+                    replies.add(done.get());
+                } catch (ExecutionException e) {
+                    if (problem == null) {
+                        final Throwable cause = e.getCause();
+                        problem = cause instanceof InvocationException ? (InvocationException) cause : new InvocationException(cause);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InvocationException("Interrupted while awaiting scattered invocation", e);
+        } finally {
+            for (Future<InvocationReply> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+        if (replies.isEmpty()) {
+            if (problem != null) {
+                throw problem;
+            }
+            throw new InvocationException(new TimeoutException("No reply to " + invocation.getMethodIdentifier() + " within " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms"));
+        }
+        return reducer.reduce(invocation, replies, dispatchers.length);
+    }
+
+    public String toString() {
+        return "scatter-gather dispatcher to " + Arrays.asList(dispatchers) + " with " + reducer;
+    }
+
+    private static final class Attempt implements Callable<InvocationReply> {
+        private final InvocationDispatcher dispatcher;
+        private final Invocation invocation;
+
+        Attempt(final InvocationDispatcher dispatcher, final Invocation invocation) {
+            this.dispatcher = dispatcher;
+            this.invocation = invocation;
+        }
+
+        public InvocationReply call() throws InvocationException {
+            return dispatcher.dispatch(invocation);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An invocation dispatcher which queues invocations and runs them on a pool of worker threads, most urgent first.
+ * Invocations are ordered by their {@link Keys#PRIORITY} property, highest first, then by their {@link Keys#DEADLINE}
+ * property, earliest first, and then in arrival order.  Invocations without a priority have priority zero, and
+ * invocations without a deadline are ordered after those with one.
+ * <p>
+ * The calling thread waits for its invocation to complete.  If it is interrupted while the invocation is still
+ * queued, the invocation is abandoned.  An invocation whose deadline passes while it is queued is discarded when it
+ * reaches a worker, and fails as it would in a {@link DeadlineInvocationProcessor}.
+ * <p>
+ * Optionally, the queue delay may be controlled with the CoDel algorithm.  Once the shortest queue delay over an
+ * interval exceeds the target delay, queued invocations are shed after waiting for the target delay rather than the
+ * interval, failing with an {@code InvocationException} whose cause is a {@link RejectedExecutionException}.  While the
+ * queue remains overloaded, newly queued invocations may also be run ahead of older ones of the same priority and
+ * deadline, since their callers are the most likely to still be waiting.
+ */
+public final class SchedulingInvocationDispatcher implements InvocationDispatcher {
+
+    private final InvocationDispatcher dispatcher;
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<Task>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final CoDelController controller;
+    private final boolean lifoWhenOverloaded;
+    private final Thread[] workers;
+    private volatile boolean shutdown;
+
+    /**
+     * Construct a new instance using the default thread factory.
+     *
+     * @param dispatcher the downstream dispatcher
+     * @param threads the number of worker threads
+     */
+    public SchedulingInvocationDispatcher(final InvocationDispatcher dispatcher, final int threads) {
+        this(dispatcher, threads, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Construct a new instance.  The worker threads are started immediately.
+     *
+     * @param dispatcher the downstream dispatcher
+     * @param threads the number of worker threads
+     * @param threadFactory the factory for the worker threads
+     */
+    public SchedulingInvocationDispatcher(final InvocationDispatcher dispatcher, final int threads, final ThreadFactory threadFactory) {
+        this(dispatcher, threads, threadFactory, null, false);
+    }
+
+    /**
+     * Construct a new instance whose queue delay is controlled.  The worker threads are started immediately.
+     *
+     * @param dispatcher the downstream dispatcher
+     * @param threads the number of worker threads
+     * @param threadFactory the factory for the worker threads
+     * @param targetDelay the target queue delay
+     * @param interval the interval over which the queue delay is measured, and the longest time any invocation may be
+     *      queued
+     * @param unit the unit of {@code targetDelay} and {@code interval}
+     * @param lifoWhenOverloaded {@code true} to run newer invocations first while the queue is overloaded
+     */
+    public SchedulingInvocationDispatcher(final InvocationDispatcher dispatcher, final int threads, final ThreadFactory threadFactory, final long targetDelay, final long interval, final TimeUnit unit, final boolean lifoWhenOverloaded) {
+        this(dispatcher, threads, threadFactory, new CoDelController(targetDelay, interval, unit), lifoWhenOverloaded);
+    }
+
+    private SchedulingInvocationDispatcher(final InvocationDispatcher dispatcher, final int threads, final ThreadFactory threadFactory, final CoDelController controller, final boolean lifoWhenOverloaded) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher is null");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("threadFactory is null");
+        }
+        this.dispatcher = dispatcher;
+        this.controller = controller;
+        this.lifoWhenOverloaded = lifoWhenOverloaded;
+        workers = new Thread[threads];
+        final Runnable worker = new Runnable() {
+            public void run() {
+                runWorker();
+            }
+        };
+        for (int i = 0; i < threads; i++) {
+            workers[i] = threadFactory.newThread(worker);
+        }
+        for (Thread thread : workers) {
+            thread.start();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
+        if (shutdown) {
+            throw new InvocationException(new RejectedExecutionException("Dispatcher is shut down"));
+        }
+        final InvocationProperties properties = invocation.getProperties();
+        final Integer priority = properties.getProperty(Keys.PRIORITY, Integer.class);
+        final Deadline deadline = properties.getProperty(Keys.DEADLINE, Deadline.class);
+        final long sequence = this.sequence.incrementAndGet();
+        // under overload, negated sequence numbers put new arrivals ahead of all older invocations, newest first
+        final boolean lifo = lifoWhenOverloaded && controller.isOverloaded();
+        final Task task = new Task(invocation, priority == null ? 0 : priority.intValue(), deadline, lifo ? -sequence : sequence);
+        queue.add(task);
+        if (shutdown && queue.remove(task)) {
+            throw new InvocationException(new RejectedExecutionException("Dispatcher is shut down"));
+        }
+        try {
+            task.done.await();
+        } catch (InterruptedException e) {
+            if (task.state.compareAndSet(Task.QUEUED, Task.ABANDONED)) {
+                queue.remove(task);
+                Thread.currentThread().interrupt();
+                throw new InvocationException("Interrupted while awaiting scheduled invocation", e);
+            }
+            // already running; the invocation cannot be withdrawn, so wait for it and keep the interrupt status
+            awaitUninterruptibly(task.done);
+            Thread.currentThread().interrupt();
+        }
+        if (task.problem != null) {
+            throw task.problem;
+        }
+        return task.reply;
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch) {
+        boolean intr = false;
+        try {
+            while (true) {
+                try {
+                    latch.await();
+                    return;
+                } catch (InterruptedException e) {
+                    intr = true;
+                }
+            }
+        } finally {
+            if (intr) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop the worker threads.  Invocations which are still queued are rejected; running invocations are allowed to
+     * complete.
+     */
+    public void shutdown() {
+        shutdown = true;
+        final List<Task> pending = new ArrayList<Task>();
+        queue.drainTo(pending);
+        for (Task task : pending) {
+            if (task.state.compareAndSet(Task.QUEUED, Task.RUNNING)) {
+                task.complete(null, new InvocationException(new RejectedExecutionException("Dispatcher is shut down")));
+            }
+        }
+        // wake idle workers without interrupting busy ones; a busy worker stops once its invocation completes
+        for (int i = 0; i < workers.length; i++) {
+            queue.add(Task.wakeUp());
+        }
+    }
+
+    private void runWorker() {
+        while (! shutdown) {
+            Task task = queue.poll();
+            if (task == null) {
+                if (controller != null) {
+                    controller.drained();
+                }
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            if (! task.state.compareAndSet(Task.QUEUED, Task.RUNNING)) {
+                continue;
+            }
+            if (controller != null && controller.dequeued(task.enqueued)) {
+                task.complete(null, new InvocationException(new RejectedExecutionException("Shed after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.enqueued) + " ms in queue: " + task.invocation.getMethodIdentifier())));
+                continue;
+            }
+            final Deadline deadline = task.deadline;
+            if (deadline != null && deadline.isExpired()) {
+                task.complete(null, DeadlineInvocationProcessor.expired(task.invocation, deadline));
+                continue;
+            }
+            try {
+                task.complete(dispatcher.dispatch(task.invocation), null);
+            } catch (InvocationException e) {
+                task.complete(null, e);
+            } catch (Throwable t) {
+                task.complete(null, new InvocationException(t));
+            }
+        }
+    }
+
+    public String toString() {
+        return "scheduling dispatcher (" + workers.length + " threads) to " + dispatcher;
+    }
+
+    private static final class Task implements Comparable<Task> {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int ABANDONED = 2;
+
+        private final Invocation invocation;
+        private final int priority;
+        private final Deadline deadline;
+        private final long sequence;
+        private final long enqueued = System.nanoTime();
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CountDownLatch done = new CountDownLatch(1);
+        // published by the latch
+        private InvocationReply reply;
+        private InvocationException problem;
+
+        Task(final Invocation invocation, final int priority, final Deadline deadline, final long sequence) {
+            this.invocation = invocation;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Create a task which is never run, and is taken ahead of all others, so that a waiting worker wakes up.
+         *
+         * @return the task
+         */
+        static Task wakeUp() {
+            final Task task = new Task(null, Integer.MAX_VALUE, null, Long.MIN_VALUE);
+            task.state.set(ABANDONED);
+            return task;
+        }
+
+        void complete(final InvocationReply reply, final InvocationException problem) {
+            this.reply = reply;
+            this.problem = problem;
+            done.countDown();
+        }
+
+        public int compareTo(final Task other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            if (deadline != other.deadline) {
+                if (deadline == null) {
+                    return 1;
+                } else if (other.deadline == null) {
+                    return -1;
+                }
+                final int res = deadline.compareTo(other.deadline);
+                if (res != 0) {
+                    return res;
+                }
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
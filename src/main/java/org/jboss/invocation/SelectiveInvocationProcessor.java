@@ -0,0 +1,40 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+/**
+ * An invocation processor which only applies to some methods.  An {@link InvocationProcessorChain} omits such a
+ * processor from the chain of any method to which it does not apply, so it costs nothing for those methods.  The
+ * decision must be stable for a given method, since a chain computes it only once.
+ */
+public interface SelectiveInvocationProcessor extends InvocationProcessor {
+
+    /**
+     * Determine whether this processor applies to invocations of the given method.
+     *
+     * @param declaringClass the declaring class of the method
+     * @param methodIdentifier the method identifier
+     * @return {@code true} if this processor should process invocations of the method, {@code false} otherwise
+     */
+    boolean appliesTo(Class<?> declaringClass, MethodIdentifier methodIdentifier);
+}
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An invocation dispatcher which sends all invocations of a session to the same downstream dispatcher.  The session
+ * is read from an invocation property, {@link Keys#SESSION} by default, and is mapped to a dispatcher with a consistent
+ * hash ring.  Each dispatcher is placed on the ring at a number of points derived from its name.  Adding or removing
+ * a dispatcher therefore moves only the sessions between its points and their neighbours, and two instances
+ * configured with the same names route every session alike.
+ * <p>
+ * A session value which is a {@link DispatcherIdentifier} is hashed by its context name, so that all dispatchers of
+ * one context share a partition.  Invocations without a session value are sent to an arbitrary dispatcher.
+ * <p>
+ * Dispatchers may be added and removed at any time.  The dispatch path never locks; it works on an immutable snapshot
+ * of the ring.
+ */
+public final class SessionAffinityInvocationDispatcher implements InvocationDispatcher {
+
+    /**
+     * The default number of ring points per dispatcher.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private static final Ring EMPTY_RING = new Ring(new long[0], new InvocationDispatcher[0], new InvocationDispatcher[0]);
+
+    private final Object propertyKey;
+    private final int virtualNodes;
+    private final Map<String, InvocationDispatcher> dispatchers = new LinkedHashMap<String, InvocationDispatcher>();
+    private volatile Ring ring = EMPTY_RING;
+
+    /**
+     * Construct a new instance which routes by {@link Keys#SESSION} with {@link #DEFAULT_VIRTUAL_NODES} ring points per
+     * dispatcher.
+     */
+    public SessionAffinityInvocationDispatcher() {
+        this(Keys.SESSION, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param propertyKey the key of the invocation property holding the session
+     * @param virtualNodes the number of ring points per dispatcher
+     */
+    public SessionAffinityInvocationDispatcher(final Object propertyKey, final int virtualNodes) {
+        if (propertyKey == null) {
+            throw new IllegalArgumentException("propertyKey is null");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        this.propertyKey = propertyKey;
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Add a downstream dispatcher, or replace the dispatcher with the given name.  The name determines the dispatcher's
+     * position on the ring.
+     *
+     * @param name the dispatcher name
+     * @param dispatcher the dispatcher to add
+     * @return the dispatcher previously registered with the name, or {@code null} if there was none
+     */
+    public synchronized InvocationDispatcher addDispatcher(final String name, final InvocationDispatcher dispatcher) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null");
+        }
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher is null");
+        }
+        final InvocationDispatcher previous = dispatchers.put(name, dispatcher);
+        ring = buildRing();
+        return previous;
+    }
+
+    /**
+     * Remove a downstream dispatcher.  Its sessions move to the neighbouring dispatchers on the ring.  Invocations
+     * already sent to the dispatcher are not affected.
+     *
+     * @param name the dispatcher name
+     * @return the removed dispatcher, or {@code null} if there was none
+     */
+    public synchronized InvocationDispatcher removeDispatcher(final String name) {
+        final InvocationDispatcher previous = dispatchers.remove(name);
+        if (previous != null) {
+            ring = buildRing();
+        }
+        return previous;
+    }
+
+    /**
+     * Get the current downstream dispatchers by name.
+     *
+     * @return the dispatchers
+     */
+    public synchronized Map<String, InvocationDispatcher> getDispatchers() {
+        return new LinkedHashMap<String, InvocationDispatcher>(dispatchers);
+    }
+
+    /**
+     * Get the downstream dispatcher which currently owns a session.
+     *
+     * @param session the session value
+     * @return the dispatcher, or {@code null} if there are no dispatchers
+     */
+    public InvocationDispatcher getDispatcher(final Object session) {
+        if (session == null) {
+            throw new IllegalArgumentException("session is null");
+        }
+        return ring.owner(hashOf(session));
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
+        final Ring ring = this.ring;
+        final Object session = invocation.getProperties().getProperty(propertyKey);
+        final InvocationDispatcher dispatcher = session == null ? ring.any() : ring.owner(hashOf(session));
+        if (dispatcher == null) {
+            throw new InvocationException(new IllegalStateException("No dispatchers available for " + invocation.getMethodIdentifier()));
+        }
+        return dispatcher.dispatch(invocation);
+    }
+
+    // call with lock held
+    private Ring buildRing() {
+        final int count = dispatchers.size() * virtualNodes;
+        final long[] points = new long[count];
+        final InvocationDispatcher[] owners = new InvocationDispatcher[count];
+        int i = 0;
+        for (Map.Entry<String, InvocationDispatcher> entry : dispatchers.entrySet()) {
+            final String name = entry.getKey();
+            for (int node = 0; node < virtualNodes; node++) {
+                points[i] = hashOf(name + '#' + node);
+                owners[i] = entry.getValue();
+                i++;
+            }
+        }
+        // sort the points, carrying the owners along
+        final Integer[] order = new Integer[count];
+        for (int j = 0; j < count; j++) {
+            order[j] = Integer.valueOf(j);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(final Integer o1, final Integer o2) {
+                return Long.compare(points[o1.intValue()], points[o2.intValue()]);
+            }
+        });
+        final long[] sortedPoints = new long[count];
+        final InvocationDispatcher[] sortedOwners = new InvocationDispatcher[count];
+        for (int j = 0; j < count; j++) {
+            sortedPoints[j] = points[order[j].intValue()];
+            sortedOwners[j] = owners[order[j].intValue()];
+        }
+        return new Ring(sortedPoints, sortedOwners, dispatchers.values().toArray(new InvocationDispatcher[dispatchers.size()]));
+    }
+
+    private static long hashOf(final Object session) {
+        if (session instanceof DispatcherIdentifier) {
+            return hashOf(((DispatcherIdentifier) session).getContextName());
+        } else if (session instanceof String) {
+            // FNV-1a, which unlike String.hashCode() spreads similar strings over the whole ring
+            final String string = (String) session;
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < string.length(); i++) {
+                hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
+            }
+            return mix(hash);
+        } else {
+            return mix(session.hashCode());
+        }
+    }
+
+    private static long mix(long hash) {
+        hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ hash >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ hash >>> 33;
+    }
+
+    public String toString() {
+        return "session affinity dispatcher by " + propertyKey + " to " + getDispatchers().keySet();
+    }
+
+    private static final class Ring {
+        private final long[] points;
+        private final InvocationDispatcher[] owners;
+        private final InvocationDispatcher[] dispatchers;
+
+        Ring(final long[] points, final InvocationDispatcher[] owners, final InvocationDispatcher[] dispatchers) {
+            this.points = points;
+            this.owners = owners;
+            this.dispatchers = dispatchers;
+        }
+
+        InvocationDispatcher owner(final long hash) {
+            final long[] points = this.points;
+            if (points.length == 0) {
+                return null;
+            }
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                // the first point after the hash, wrapping around
+                index = -index - 1;
+                if (index == points.length) {
+                    index = 0;
+                }
+            }
+            return owners[index];
+        }
+
+        InvocationDispatcher any() {
+            final InvocationDispatcher[] dispatchers = this.dispatchers;
+            switch (dispatchers.length) {
+                case 0: return null;
+                case 1: return dispatchers[0];
+            }
+            return dispatchers[ThreadLocalRandom.current().nextInt(dispatchers.length)];
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An invocation dispatcher which partitions invocations by key over a set of shards, each served by a single thread.
+ * The key is either an argument at a fixed position or an invocation property.  All invocations with equal keys run,
+ * in arrival order, on the same shard thread, so each shard's downstream dispatcher may keep per-shard state without
+ * locking.  Invocations without a key go to the first shard.
+ * <p>
+ * Each shard has its own multi-producer queue; an idle shard thread parks and is unparked by the next producer.  The
+ * calling thread waits for its invocation to complete.  An invocation made from a shard thread to its own shard runs
+ * directly, rather than waiting for itself.  An invocation made from a shard thread to any other shard, of this or of
+ * any other sharded dispatcher, is rejected: the shard thread would be blocked while it waits, and if the other shard
+ * were to call back into it, directly or through further shards, both would wait forever.  Shard code which needs
+ * another shard must hand the work to some other thread.
+ * <p>
+ * An invocation whose {@link Keys#DEADLINE} has passed by the time its shard takes it is failed without being run.
+ */
+public final class ShardedInvocationDispatcher implements InvocationDispatcher {
+
+    // the shard served by the current thread, if it is a shard thread of any sharded dispatcher
+    private static final ThreadLocal<Shard> CURRENT_SHARD = new ThreadLocal<Shard>();
+
+    private final int argumentIndex;
+    private final Object propertyKey;
+    private final Shard[] shards;
+    private volatile boolean shutdown;
+
+    /**
+     * Construct a new instance which partitions by argument.  The shard threads are started immediately.
+     *
+     * @param argumentIndex the index of the argument to partition by
+     * @param threadFactory the factory for the shard threads
+     * @param dispatchers the downstream dispatcher of each shard
+     */
+    public ShardedInvocationDispatcher(final int argumentIndex, final ThreadFactory threadFactory, final InvocationDispatcher... dispatchers) {
+        this(checkArgumentIndex(argumentIndex), null, threadFactory, dispatchers);
+    }
+
+    /**
+     * Construct a new instance which partitions by argument, using the default thread factory.
+     *
+     * @param argumentIndex the index of the argument to partition by
+     * @param dispatchers the downstream dispatcher of each shard
+     */
+    public ShardedInvocationDispatcher(final int argumentIndex, final InvocationDispatcher... dispatchers) {
+        this(argumentIndex, Executors.defaultThreadFactory(), dispatchers);
+    }
+
+    /**
+     * Construct a new instance which partitions by invocation property.  The shard threads are started immediately.
+     *
+     * @param propertyKey the key of the invocation property to partition by
+     * @param threadFactory the factory for the shard threads
+     * @param dispatchers the downstream dispatcher of each shard
+     */
+    public ShardedInvocationDispatcher(final Object propertyKey, final ThreadFactory threadFactory, final InvocationDispatcher... dispatchers) {
+        this(-1, checkPropertyKey(propertyKey), threadFactory, dispatchers);
+    }
+
+    private static int checkArgumentIndex(final int argumentIndex) {
+        if (argumentIndex < 0) {
+            throw new IllegalArgumentException("argumentIndex is negative");
+        }
+        return argumentIndex;
+    }
+
+    private static Object checkPropertyKey(final Object propertyKey) {
+        if (propertyKey == null) {
+            throw new IllegalArgumentException("propertyKey is null");
+        }
+        return propertyKey;
+    }
+
+    private ShardedInvocationDispatcher(final int argumentIndex, final Object propertyKey, final ThreadFactory threadFactory, final InvocationDispatcher[] dispatchers) {
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("threadFactory is null");
+        }
+        if (dispatchers == null || dispatchers.length == 0) {
+            throw new IllegalArgumentException("dispatchers is empty");
+        }
+        for (InvocationDispatcher dispatcher : dispatchers) {
+            if (dispatcher == null) {
+                throw new IllegalArgumentException("dispatcher is null");
+            }
+        }
+        this.argumentIndex = argumentIndex;
+        this.propertyKey = propertyKey;
+        shards = new Shard[dispatchers.length];
+        for (int i = 0; i < dispatchers.length; i++) {
+            shards[i] = new Shard(dispatchers[i]);
+            shards[i].thread = threadFactory.newThread(shards[i]);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public InvocationReply dispatch(final Invocation invocation) throws InvocationException {
+        final Shard shard = shards[shardOf(keyOf(invocation))];
+        final Shard current = CURRENT_SHARD.get();
+        if (current == shard) {
+            return shard.dispatcher.dispatch(invocation);
+        }
+        if (current != null) {
+            throw new InvocationException(new RejectedExecutionException("Shard thread " + current.thread.getName() + " may not wait for another shard: " + invocation.getMethodIdentifier()));
+        }
+        if (shutdown) {
+            throw new InvocationException(new RejectedExecutionException("Dispatcher is shut down"));
+        }
+        final Task task = new Task(invocation, invocation.getProperties().getProperty(Keys.DEADLINE, Deadline.class));
+        shard.submit(task);
+        if (shutdown && shard.queue.remove(task)) {
+            throw new InvocationException(new RejectedExecutionException("Dispatcher is shut down"));
+        }
+        boolean intr = false;
+        try {
+            while (true) {
+                try {
+                    // the invocation may already be running, so it cannot be withdrawn
+                    task.done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    intr = true;
+                }
+            }
+        } finally {
+            if (intr) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (task.problem != null) {
+            throw task.problem;
+        }
+        return task.reply;
+    }
+
+    private Object keyOf(final Invocation invocation) {
+        if (propertyKey != null) {
+            return invocation.getProperties().getProperty(propertyKey);
+        }
+        return argumentIndex < invocation.getArgs().length ? invocation.getArg(argumentIndex) : null;
+    }
+
+    private int shardOf(final Object key) {
+        if (key == null) {
+            return 0;
+        }
+        final int hashCode = key.hashCode();
+        return ((hashCode ^ hashCode >>> 16) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Stop the shard threads.  Invocations which are still queued are rejected; running invocations are allowed to
+     * complete.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    public String toString() {
+        return "sharded dispatcher (" + shards.length + " shards by " + (propertyKey != null ? "property " + propertyKey : "argument " + argumentIndex) + ")";
+    }
+
+    private final class Shard implements Runnable {
+        private final InvocationDispatcher dispatcher;
+        private final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<Task>();
+        private volatile boolean parked;
+        private Thread thread;
+
+        Shard(final InvocationDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        void submit(final Task task) {
+            queue.offer(task);
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public void run() {
+            CURRENT_SHARD.set(this);
+            while (! shutdown) {
+                Task task = queue.poll();
+                if (task == null) {
+                    // publish the intent to park before the final check, so a producer either sees it or is seen
+                    parked = true;
+                    task = queue.poll();
+                    if (task == null && ! shutdown) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    if (task == null) {
+                        continue;
+                    }
+                }
+                final Deadline deadline = task.deadline;
+                if (deadline != null && deadline.isExpired()) {
+                    task.complete(null, DeadlineInvocationProcessor.expired(task.invocation, deadline));
+                    continue;
+                }
+                try {
+                    task.complete(dispatcher.dispatch(task.invocation), null);
+                } catch (InvocationException e) {
+                    task.complete(null, e);
+                } catch (Throwable t) {
+                    task.complete(null, new InvocationException(t));
+                }
+            }
+            Task task;
+            while ((task = queue.poll()) != null) {
+                task.complete(null, new InvocationException(new RejectedExecutionException("Dispatcher is shut down")));
+            }
+        }
+    }
+
+    private static final class Task {
+        private final Invocation invocation;
+        private final Deadline deadline;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // published by the latch
+        private InvocationReply reply;
+        private InvocationException problem;
+
+        Task(final Invocation invocation, final Deadline deadline) {
+            this.invocation = invocation;
+            this.deadline = deadline;
+        }
+
+        void complete(final InvocationReply reply, final InvocationException problem) {
+            this.reply = reply;
+            this.problem = problem;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.invocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+
+/**
+ * Support for stream-valued invocation arguments: {@link InputStream}s, {@link ReadableByteChannel}s and
+ * {@link Flow.Publisher}s of {@link ByteBuffer}s.  Such arguments are never cloned; when an invocation is serialized,
+ * each is replaced in the argument array by a {@link Placeholder} and its content is written after the invocation as a
+ * sequence of length-prefixed chunks, so the sender never holds more than one chunk in memory.
+ * <p>
+ * The elements of a streaming reply are serialized similarly, one at a time as the publisher produces them.
+ * <p>
+ * The receiver holds stream content in memory, so it bounds what it accepts: no chunk or buffer element may exceed
+ * 1 MiB (larger buffers from a stream argument publisher are split when written), and the total content of the stream
+ * arguments of one invocation, or of the buffer elements of one reply, may not exceed the value of the system property
+ * {@code org.jboss.invocation.streams.maximumSize}, which defaults to 256 MiB.
+ */
+final class StreamArguments {
+
+    private static final int CHUNK_SIZE = 16384;
+    private static final int MAXIMUM_CHUNK_SIZE = CHUNK_SIZE * 64;
+    private static final long MAXIMUM_CONTENT_SIZE = getMaximumContentSize();
+    private static final int END = -1;
+
+    private static final byte INPUT_STREAM = 1;
+    private static final byte CHANNEL = 2;
+    private static final byte PUBLISHER = 3;
+
+    private static final byte ELEMENTS_END = 0;
+    private static final byte ELEMENT = 1;
+    private static final byte BUFFER_ELEMENT = 2;
+    private static final byte ELEMENTS_FAILED = 3;
+
+    private StreamArguments() {
+    }
+
+    private static long getMaximumContentSize() {
+        final long defaultSize = 256L << 20;
+        try {
+            return Math.max(0L, Long.getLong("org.jboss.invocation.streams.maximumSize", defaultSize).longValue());
+        } catch (SecurityException e) {
+            return defaultSize;
+        }
+    }
+
+    /**
+     * Determine whether an argument is a stream which should be passed by reference or in chunks.
+     *
+     * @param arg the argument
+     * @return {@code true} if it is a stream argument
+     */
+    static boolean isStream(final Object arg) {
+        return arg instanceof InputStream || arg instanceof ReadableByteChannel || arg instanceof Flow.Publisher;
+    }
+
+    /**
+     * Determine whether any argument is a stream.  A stream argument can be consumed only once, so an invocation which
+     * has one must not be dispatched more than once.
+     *
+     * @param args the arguments
+     * @return {@code true} if any argument is a stream argument
+     */
+    static boolean hasStream(final Object[] args) {
+        for (Object arg : args) {
+            if (isStream(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a copy of an argument array with the stream arguments replaced by placeholders.
+     *
+     * @param args the arguments
+     * @return the replaced arguments, or {@code args} itself if there are no stream arguments
+     */
+    static Object[] replaceStreams(final Object[] args) {
+        Object[] replaced = args;
+        for (int i = 0; i < args.length; i++) {
+            final Object arg = args[i];
+            if (isStream(arg)) {
+                if (replaced == args) {
+                    replaced = args.clone();
+                }
+                replaced[i] = new Placeholder(arg instanceof InputStream ? INPUT_STREAM : arg instanceof ReadableByteChannel ? CHANNEL : PUBLISHER);
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Write the content of each stream argument, in order.
+     *
+     * @param oos the output stream
+     * @param args the original arguments
+     * @throws IOException if writing fails or a stream argument cannot be read
+     */
+    static void writeStreams(final ObjectOutputStream oos, final Object[] args) throws IOException {
+        byte[] buffer = null;
+        for (Object arg : args) {
+            if (arg instanceof InputStream) {
+                if (buffer == null) buffer = new byte[CHUNK_SIZE];
+                final InputStream stream = (InputStream) arg;
+                int res;
+                while ((res = stream.read(buffer)) != -1) {
+                    if (res > 0) {
+                        oos.writeInt(res);
+                        oos.write(buffer, 0, res);
+                    }
+                }
+                oos.writeInt(END);
+            } else if (arg instanceof ReadableByteChannel) {
+                if (buffer == null) buffer = new byte[CHUNK_SIZE];
+                final ReadableByteChannel channel = (ReadableByteChannel) arg;
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+                int res;
+                while ((res = channel.read(byteBuffer)) != -1) {
+                    if (res > 0) {
+                        oos.writeInt(res);
+                        oos.write(buffer, 0, res);
+                    }
+                    byteBuffer.clear();
+                }
+                oos.writeInt(END);
+            } else if (arg instanceof Flow.Publisher) {
+                writePublisher(oos, (Flow.Publisher<?>) arg);
+            }
+        }
+    }
+
+    private static void writePublisher(final ObjectOutputStream oos, final Flow.Publisher<?> publisher) throws IOException {
+        final ChunkSubscriber subscriber = new ChunkSubscriber(true);
+        publisher.subscribe(subscriber);
+        try {
+            for (;;) {
+                final Object item = subscriber.queue.take();
+                if (item == ChunkSubscriber.COMPLETE) {
+                    break;
+                } else if (item instanceof ChunkSubscriber.Failure) {
+                    throw new IOException("Stream argument publisher failed", ((ChunkSubscriber.Failure) item).cause);
+                }
+                final ByteBuffer chunk = ((ByteBuffer) item).duplicate();
+                // split large buffers, since receivers reject oversized chunks
+                while (chunk.hasRemaining()) {
+                    final int length = Math.min(chunk.remaining(), MAXIMUM_CHUNK_SIZE);
+                    oos.writeInt(length);
+                    if (chunk.hasArray()) {
+                        oos.write(chunk.array(), chunk.arrayOffset() + chunk.position(), length);
+                        chunk.position(chunk.position() + length);
+                    } else {
+                        final byte[] bytes = new byte[length];
+                        chunk.get(bytes);
+                        oos.write(bytes);
+                    }
+                }
+                subscriber.subscription.request(1L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            subscriber.cancel();
+            throw new InterruptedIOException("Interrupted while writing stream argument");
+        } catch (IOException e) {
+            subscriber.cancel();
+            throw e;
+        } catch (RuntimeException e) {
+            subscriber.cancel();
+            throw e;
+        }
+        oos.writeInt(END);
+    }
+
+    /**
+     * Write the elements of a streaming reply as they are produced, followed by an end marker.  Each element is written
+     * with the given stream's own {@code writeObject}, except {@code ByteBuffer} elements, whose remaining bytes are
+     * written instead.  If the publisher fails, its failure is written in place of the end marker.  This method
+     * returns once the publisher has completed.
+     *
+     * @param oos the output stream
+     * @param publisher the publisher
+     * @throws IOException if writing fails, for example because an element is not serializable
+     */
+    static void writeElements(final ObjectOutputStream oos, final Flow.Publisher<?> publisher) throws IOException {
+        final ChunkSubscriber subscriber = new ChunkSubscriber(false);
+        publisher.subscribe(subscriber);
+        try {
+            for (;;) {
+                final Object item = subscriber.queue.take();
+                if (item == ChunkSubscriber.COMPLETE) {
+                    oos.writeByte(ELEMENTS_END);
+                    return;
+                } else if (item instanceof ChunkSubscriber.Failure) {
+                    oos.writeByte(ELEMENTS_FAILED);
+                    oos.writeObject(((ChunkSubscriber.Failure) item).cause);
+                    return;
+                } else if (item instanceof ByteBuffer) {
+                    final ByteBuffer buffer = ((ByteBuffer) item).duplicate();
+                    if (buffer.remaining() > MAXIMUM_CHUNK_SIZE) {
+                        throw new IOException("Streaming reply buffer element of " + buffer.remaining() + " bytes exceeds " + MAXIMUM_CHUNK_SIZE + " bytes");
+                    }
+                    final byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    oos.writeByte(BUFFER_ELEMENT);
+                    oos.writeInt(bytes.length);
+                    oos.write(bytes);
+                } else {
+                    oos.writeByte(ELEMENT);
+                    oos.writeObject(item);
+                }
+                subscriber.subscription.request(1L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            subscriber.cancel();
+            throw new InterruptedIOException("Interrupted while writing streaming reply");
+        } catch (IOException e) {
+            subscriber.cancel();
+            throw e;
+        } catch (RuntimeException e) {
+            subscriber.cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the elements of a streaming reply written by {@link #writeElements(ObjectOutputStream, Flow.Publisher)}.
+     * The elements are held in memory and published again to each subscriber, followed by the original failure, if
+     * any.
+     *
+     * @param ois the input stream
+     * @return a publisher of the elements
+     * @throws IOException if reading fails
+     * @throws ClassNotFoundException if the class of an element cannot be resolved
+     */
+    static Flow.Publisher<Object> readElements(final ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        final List<Object> elements = new ArrayList<Object>();
+        long remaining = MAXIMUM_CONTENT_SIZE;
+        for (;;) {
+            final byte marker = ois.readByte();
+            switch (marker) {
+                case ELEMENTS_END: {
+                    return new IterablePublisher<Object>(elements);
+                }
+                case ELEMENTS_FAILED: {
+                    final Object cause = ois.readObject();
+                    if (! (cause instanceof Throwable)) {
+                        throw new InvalidObjectException("Streaming reply failure is not a Throwable");
+                    }
+                    return new IterablePublisher<Object>(new FailingIterable(elements, (Throwable) cause));
+                }
+                case BUFFER_ELEMENT: {
+                    final int length = ois.readInt();
+                    if (length < 0 || length > MAXIMUM_CHUNK_SIZE) {
+                        throw new InvalidObjectException("Invalid buffer element length " + length);
+                    }
+                    if (length > remaining) {
+                        throw new InvalidObjectException("Streaming reply content exceeds " + MAXIMUM_CONTENT_SIZE + " bytes");
+                    }
+                    remaining -= length;
+                    final byte[] bytes = new byte[length];
+                    ois.readFully(bytes);
+                    elements.add(ByteBuffer.wrap(bytes));
+                    break;
+                }
+                case ELEMENT: {
+                    elements.add(ois.readObject());
+                    break;
+                }
+                default: {
+                    throw new InvalidObjectException("Unknown streaming reply marker " + marker);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the content of each stream argument, in order, and replace its placeholder.  The content of each stream is
+     * held in memory, in the chunks it was written in; the stream handed out reads those chunks in place.
+     *
+     * @param ois the input stream
+     * @param args the arguments as read
+     * @return the arguments with their placeholders replaced
+     * @throws IOException if reading fails
+     */
+    static Object[] readStreams(final ObjectInputStream ois, final Object[] args) throws IOException {
+        long remaining = MAXIMUM_CONTENT_SIZE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof Placeholder) {
+                final byte kind = ((Placeholder) args[i]).kind;
+                final List<byte[]> chunks = readChunks(ois, remaining);
+                for (byte[] chunk : chunks) {
+                    remaining -= chunk.length;
+                }
+                if (kind == PUBLISHER) {
+                    final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(chunks.size());
+                    for (byte[] chunk : chunks) {
+                        buffers.add(ByteBuffer.wrap(chunk));
+                    }
+                    args[i] = new IterablePublisher<ByteBuffer>(buffers);
+                } else {
+                    final List<InputStream> streams = new ArrayList<InputStream>(chunks.size());
+                    for (byte[] chunk : chunks) {
+                        streams.add(new ByteArrayInputStream(chunk));
+                    }
+                    final InputStream stream = new SequenceInputStream(Collections.enumeration(streams));
+                    args[i] = kind == CHANNEL ? Channels.newChannel(stream) : stream;
+                }
+            }
+        }
+        return args;
+    }
+
+    private static List<byte[]> readChunks(final ObjectInputStream ois, final long limit) throws IOException {
+        final List<byte[]> chunks = new ArrayList<byte[]>();
+        long remaining = limit;
+        int length;
+        while ((length = ois.readInt()) != END) {
+            if (length < 0 || length > MAXIMUM_CHUNK_SIZE) {
+                throw new InvalidObjectException("Invalid stream argument chunk length " + length);
+            }
+            if (length > remaining) {
+                throw new InvalidObjectException("Stream argument content exceeds " + MAXIMUM_CONTENT_SIZE + " bytes");
+            }
+            remaining -= length;
+            final byte[] bytes = new byte[length];
+            ois.readFully(bytes);
+            chunks.add(bytes);
+        }
+        return chunks;
+    }
+
+    /**
+     * The serialized stand-in for a stream argument.
+     */
+    static final class Placeholder implements Serializable {
+
+        private static final long serialVersionUID = -1846104378716230425L;
+
+        /**
+         * The kind of stream.
+         *
+         * @serial
+         */
+        private final byte kind;
+
+        Placeholder(final byte kind) {
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * The elements of a failed streaming reply, followed by the failure.
+     */
+    private static final class FailingIterable implements Iterable<Object> {
+        private final List<Object> elements;
+        private final Throwable cause;
+
+        FailingIterable(final List<Object> elements, final Throwable cause) {
+            this.elements = elements;
+            this.cause = cause;
+        }
+
+        public Iterator<Object> iterator() {
+            final Iterator<Object> iterator = elements.iterator();
+            return new Iterator<Object>() {
+                public boolean hasNext() {
+                    if (! iterator.hasNext()) {
+                        throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException("Streaming reply failed", cause);
+                    }
+                    return true;
+                }
+
+                public Object next() {
+                    hasNext();
+                    return iterator.next();
+                }
+            };
+        }
+    }
+
+    private static final class ChunkSubscriber implements Flow.Subscriber<Object> {
+        static final Object COMPLETE = new Object();
+
+        // one outstanding item, plus room for a terminal signal
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(2);
+        final boolean buffersOnly;
+        volatile Flow.Subscription subscription;
+
+        ChunkSubscriber(final boolean buffersOnly) {
+            this.buffersOnly = buffersOnly;
+        }
+
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1L);
+        }
+
+        public void onNext(final Object item) {
+            if (buffersOnly && ! (item instanceof ByteBuffer)) {
+                queue.add(new Failure(new IllegalArgumentException("Stream argument publisher produced a non-ByteBuffer item")));
+            } else {
+                queue.add(item == null ? new Failure(new NullPointerException("Publisher produced a null item")) : item);
+            }
+        }
+
+        public void onError(final Throwable throwable) {
+            queue.add(new Failure(throwable));
+        }
+
+        public void onComplete() {
+            queue.add(COMPLETE);
+        }
+
+        void cancel() {
+            final Flow.Subscription subscription = this.subscription;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+
+        /**
+         * A publisher failure, wrapped so that it cannot be mistaken for an element which is itself a throwable.
+         */
+        static final class Failure {
+            final Throwable cause;
+
+            Failure(final Throwable cause) {
+                this.cause = cause;
+            }
+        }
+    }
+}